@@ -22,30 +22,126 @@
 
 package de.tud.kom.inband;
 
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.projectfloodlight.openflow.protocol.OFFlowAdd;
 import org.projectfloodlight.openflow.protocol.OFPacketOut;
 import org.projectfloodlight.openflow.types.OFPort;
 
 import de.tud.kom.inband.eval.EvalCollector;
+import de.tud.kom.inband.util.ConnectionSet;
 import de.tud.kom.inband.util.ControllerConnection;
+import de.tud.kom.inband.util.FlowRuleRegistry;
 import de.tud.kom.inband.util.OFMessageBuilder;
 import de.tud.kom.inband.util.Routing;
+import de.tud.kom.inband.util.SwitchPort;
 import net.floodlightcontroller.core.IOFSwitch;
 
+/**
+ * Keeps the connections to all foreign controllers.
+ * 
+ * Changes are serialized on this instance, while lookups work on concurrent
+ * maps and immutable snapshots and may be called from any thread without
+ * blocking.
+ */
 public class ConnectionManager {
 
-	private Map<Integer, List<ControllerConnection>> connections;
+	/**
+	 * how messages are spread over the activated connections to a controller
+	 */
+	public enum MultipathMode {
+		/* only the best connection */
+		OFF,
+		/* proportional to 1/costs */
+		WEIGHTED,
+		/* in turn, for bulk transfers */
+		ROUND_ROBIN
+	}
+
+	public interface ActivationListener {
+		/**
+		 * called after an activation has been sent for the connection
+		 */
+		public void onActivated(int controller, ControllerConnection connection);
+	}
+
+	/* messages without flow key are not bound to a path */
+	public static final long NO_FLOW_KEY = Long.MIN_VALUE;
+
+	private Map<Integer, ConnectionSet> connections;
+	/* reverse index: controllers reachable through a switch port */
+	private Map<SwitchPort, Set<Integer>> controllersAt;
 	private int controllerId;
+	private MultipathMode multipathMode;
+	private int maxPaths;
+	private List<ActivationListener> activationListeners;
+	/* starts at the current time, so a restarted controller does not reuse recently seen numbers */
+	private AtomicInteger discoverySequence;
+	private ScheduledExecutorService jitterExecutor;
+	private int maxJitterMillis;
+	/* jittered rebroadcasts not yet sent, per origin controller */
+	private Map<Integer, ScheduledFuture<?>> pendingBroadcasts;
+	private ScheduledExecutorService hysteresisExecutor;
+	private double minImprovement;
+	private long holdDownMillis;
+	private long flapHalfLifeMillis = 60000;
+	/* checks of candidates held down by the hysteresis, per controller */
+	private Map<Integer, ScheduledFuture<?>> pendingSwitches;
 
 	public ConnectionManager(int controllerId) {
-		this.connections = new HashMap<>();
+		this(controllerId, MultipathMode.OFF, 1);
+	}
+
+	public ConnectionManager(int controllerId, MultipathMode multipathMode, int maxPaths) {
+		this.connections = new ConcurrentHashMap<>();
+		this.controllersAt = new ConcurrentHashMap<>();
 		this.controllerId = controllerId;
+		this.multipathMode = multipathMode;
+		this.maxPaths = maxPaths;
+		this.activationListeners = new CopyOnWriteArrayList<>();
+		this.discoverySequence = new AtomicInteger((int) (System.currentTimeMillis() / 1000));
+		this.pendingBroadcasts = new ConcurrentHashMap<>();
+		this.pendingSwitches = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * delay rebroadcasts of discoveries by a random time up to maxJitterMillis,
+	 * a better announcement arriving in the meantime replaces the pending one
+	 */
+	public void setDiscoveryJitter(ScheduledExecutorService executor, int maxJitterMillis) {
+		this.jitterExecutor = maxJitterMillis > 0 ? executor : null;
+		this.maxJitterMillis = maxJitterMillis;
+	}
+
+	/**
+	 * only switch to a cheaper connection if it improves the costs of the
+	 * used one by at least minImprovement and the last switch to the same
+	 * controller is holdDownMillis (times the recent switches) ago
+	 */
+	public void setSwitchHysteresis(ScheduledExecutorService executor, double minImprovement, long holdDownMillis, long flapHalfLifeMillis) {
+		this.hysteresisExecutor = executor;
+		this.minImprovement = minImprovement;
+		this.holdDownMillis = holdDownMillis;
+		this.flapHalfLifeMillis = flapHalfLifeMillis;
+		for (ConnectionSet connections : this.connections.values())
+		{
+			connections.setHysteresis(minImprovement, holdDownMillis, flapHalfLifeMillis);
+		}
+	}
+
+	public void addActivationListener(ActivationListener l) {
+		this.activationListeners.add(l);
 	}
 
 	/**
@@ -61,7 +157,8 @@ public class ConnectionManager {
 	 *            forwarded to the target controller or droppped
 	 */
 	public void discoverPort(IOFSwitch switch_, OFPort port) {
-		byte[] serializedData = OFMessageBuilder.discoveryPacket(1, this.controllerId, 1024, (int) switch_.getId().getLong());
+		byte[] serializedData = OFMessageBuilder.discoveryPacket(1, this.controllerId, 1024, (int) switch_.getId().getLong(),
+				this.discoverySequence.incrementAndGet());
 		OFPacketOut po = OFMessageBuilder.packetOut(switch_, port, serializedData);
 		EvalCollector.get().incrementDisoveryMessageCounter();
 		switch_.write(po);
@@ -71,8 +168,13 @@ public class ConnectionManager {
 	 * Store the discovered connection to the controller in a list for the
 	 * source controller ordered by their costs
 	 * 
-	 * If the found connection is the best which was found so far send a
-	 * connection activation
+	 * If the found connection is the best which was found so far and passes
+	 * the switch hysteresis send a connection activation. In multipath mode
+	 * further connections are activated as well, up to the configured number
+	 * of paths.
+	 * 
+	 * The better costs are broadcast even if the connection is not used yet,
+	 * neighbors keep their own hysteresis.
 	 * 
 	 * @param sourceController
 	 * @param sw
@@ -82,62 +184,128 @@ public class ConnectionManager {
 	 * @param costs
 	 *            for this connection
 	 * @param relayed
-	 * @return the position in the connections list, 0 indicates the first
-	 *         (best) connection
+	 * @return true if the connection is the new best connection
 	 */
-	public int storeAndUseConnection(int sourceController, IOFSwitch sw, OFPort inPort, int costs, boolean broadcast) {
-		int index = storeConnection(sourceController, sw, inPort, costs);
-		if (index == 0)
+	public boolean storeAndUseConnection(int sourceController, IOFSwitch sw, OFPort inPort, int costs, boolean broadcast) {
+		return storeAndUseConnection(sourceController, sw, inPort, costs, broadcast, 0);
+	}
+
+	/**
+	 * @param sequence
+	 *            of the discovery announcement, passed on when broadcasting
+	 */
+	public synchronized boolean storeAndUseConnection(int sourceController, IOFSwitch sw, OFPort inPort, int costs, boolean broadcast, int sequence) {
+		ControllerConnection connection = store(sourceController, sw, inPort, costs);
+		if (connection == null)
+		{
+			return false;
+		}
+		ConnectionSet connections = this.connections.get(sourceController);
+		boolean best = connections.first() == connection;
+		if (best && broadcast)
+		{
+			scheduleBroadcast(sourceController, sw, inPort, costs, sequence);
+		}
+		best = best && switchTo(sourceController, connections, connection);
+		if (best)
 		{
 			/*
 			 * if connection is the best so far, activate it
 			 */
 			activateConnection(sourceController, sw, inPort, costs);
-			if (broadcast)
-			{
-				broadcastDiscovery(sourceController, sw, inPort, costs);
-			}
 		}
-		return index;
+		else if (this.multipathMode != MultipathMode.OFF && !connection.isActivated() && connections.countActivated() < this.maxPaths)
+		{
+			activateConnection(sourceController, sw, inPort, costs);
+		}
+		return best;
+	}
+
+	/**
+	 * Store a connection or update the costs of the known connection at the
+	 * same switch port
+	 * 
+	 * @return true if the connection was added or improved and is now the
+	 *         best connection to the source controller
+	 */
+	public synchronized boolean storeConnection(int sourceController, IOFSwitch inSwitch, OFPort inPort, int costs) {
+		ControllerConnection connection = store(sourceController, inSwitch, inPort, costs);
+		return connection != null && this.connections.get(sourceController).first() == connection;
 	}
 
-	public int storeConnection(int sourceController, IOFSwitch inSwitch, OFPort inPort, int costs) {
-		ControllerConnection connection = new ControllerConnection(inSwitch, inPort, costs);
-		List<ControllerConnection> connections = lazyLoad(sourceController);
-		int index = 0;
-		if(connections.isEmpty())
+	/*
+	 * @return the added or improved connection, null if nothing changed
+	 */
+	private ControllerConnection store(int sourceController, IOFSwitch inSwitch, OFPort inPort, int costs) {
+		ConnectionSet connections = this.connections.get(sourceController);
+		boolean first = connections == null;
+		if (first)
+		{
+			connections = new ConnectionSet();
+			connections.setHysteresis(this.minImprovement, this.holdDownMillis, this.flapHalfLifeMillis);
+		}
+		ControllerConnection connection = connections.store(inSwitch, inPort, costs);
+		if (connection == null)
+		{
+			return null;
+		}
+		// publish only non-empty sets
+		if (first)
+		{
+			this.connections.put(sourceController, connections);
+		}
+		indexController(new SwitchPort(inSwitch, inPort), sourceController);
+		boolean best = connections.first() == connection;
+		if (first)
 		{
 			EvalCollector.get().incrementFirstConnections();
 		}
-		else
+		else if (best)
 		{
-			for (int i = 0; i < connections.size(); i++)
-			{
-				ControllerConnection con = connections.get(i);
-				if (costs < con.getCosts())
-				{
-					break;
-				}
-				index++;
-			}			
-			if(index == 0)
-			{
-				EvalCollector.get().incrementNewBestConection();
-			}
+			EvalCollector.get().incrementNewBestConection();
 		}
 
-		connections.add(index, connection);
 		System.out.println("Store connection to " + sourceController + " at " + connection.getSwitch().getId().getLong() + ":"
 				+ connection.getPort().getPortNumber() + ", cost=" + costs);
 
-		return index;
+		return connection;
+	}
+
+	private void indexController(SwitchPort key, int controller) {
+		Set<Integer> controllers = this.controllersAt.get(key);
+		if (controllers == null)
+		{
+			controllers = new CopyOnWriteArraySet<>();
+			this.controllersAt.put(key, controllers);
+		}
+		controllers.add(controller);
+	}
+
+	private void scheduleBroadcast(final int sourceController, final IOFSwitch inSw, final OFPort inPort, final int costs, final int sequence) {
+		ScheduledExecutorService executor = this.jitterExecutor;
+		if (executor == null)
+		{
+			broadcastDiscovery(sourceController, inSw, inPort, costs, sequence);
+			return;
+		}
+		ScheduledFuture<?> pending = executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				broadcastDiscovery(sourceController, inSw, inPort, costs, sequence);
+			}
+		}, ThreadLocalRandom.current().nextInt(this.maxJitterMillis + 1), TimeUnit.MILLISECONDS);
+		ScheduledFuture<?> replaced = this.pendingBroadcasts.put(sourceController, pending);
+		if (replaced != null)
+		{
+			replaced.cancel(false);
+		}
 	}
 
 	/*
 	 * inform all neighboring clients about new (better) connection to
 	 * sourceController
 	 */
-	private void broadcastDiscovery(int sourceController, IOFSwitch inSw, OFPort inPort, int costs) {
+	private void broadcastDiscovery(int sourceController, IOFSwitch inSw, OFPort inPort, int costs, int sequence) {
 		int previousController = getPreviousController(inSw, inPort, sourceController);
 		for (Integer connectedController : this.getConnectedController())
 		{
@@ -155,7 +323,7 @@ public class ConnectionManager {
 					continue;
 				}
 				byte[] discovery = OFMessageBuilder.discoveryPacket(costs + additionalPathCosts, sourceController, 1024,
-						(int) inSw.getId().getLong());
+						(int) inSw.getId().getLong(), sequence);
 				OFPacketOut msg = OFMessageBuilder.packetOut(c.getSwitch(), c.getPort(), discovery);
 				c.getSwitch().write(msg);
 				System.out.println("Broadcast to " + connectedController);
@@ -182,10 +350,210 @@ public class ConnectionManager {
 		byte[] serializedData = OFMessageBuilder.activatePacket(this.controllerId, foreignController, costs);
 		OFPacketOut po = OFMessageBuilder.packetOut(sw, port, serializedData);
 		sw.write(po);
+		ConnectionSet connections = this.connections.get(foreignController);
+		ControllerConnection connection = connections != null ? connections.get(new SwitchPort(sw, port)) : null;
+		if (connection != null)
+		{
+			connection.setActivated(true);
+			for (ActivationListener l : this.activationListeners)
+			{
+				l.onActivated(foreignController, connection);
+			}
+		}
 		EvalCollector.get().incrementActivationMessageCounter();
 		System.out.println("Activation from this to " + foreignController + " at " + sw.getId().getLong() + ":" + port.getPortNumber());
 	}
 
+	/**
+	 * Remove every connection starting at a port which went down and switch
+	 * to the next best connection of the affected controllers right away.
+	 * 
+	 * @return the controllers which lost a connection
+	 */
+	public synchronized Set<Integer> removeConnectionsAt(IOFSwitch sw, OFPort port) {
+		SwitchPort key = new SwitchPort(sw, port);
+		Set<Integer> controllers = this.controllersAt.remove(key);
+		if (controllers == null)
+		{
+			return Collections.emptySet();
+		}
+		Routing.connectionWithdrawn(key);
+		for (Integer controller : controllers)
+		{
+			ConnectionSet connections = this.connections.get(controller);
+			if (connections == null)
+				continue;
+			ControllerConnection used = connections.current();
+			ControllerConnection removed = connections.remove(key);
+			if (removed == null)
+				continue;
+			System.out.println("Remove connection to " + controller + " at " + key);
+			if (connections.isEmpty())
+			{
+				this.connections.remove(controller);
+				System.out.println("Lost all connections to " + controller);
+				continue;
+			}
+			if (removed == used)
+			{
+				promote(controller, connections);
+			}
+			else if (removed.isActivated() && this.multipathMode != MultipathMode.OFF)
+			{
+				topUp(controller, connections);
+			}
+		}
+		return controllers;
+	}
+
+	/*
+	 * activate the next best connection (and in multipath mode further
+	 * connections) after the used one was removed, without hold-down
+	 */
+	private void promote(int controller, ConnectionSet connections) {
+		ControllerConnection best = connections.first();
+		connections.use(best, System.currentTimeMillis());
+		if (!best.isActivated())
+		{
+			activateConnection(controller, best.getSwitch(), best.getPort(), best.getHops());
+		}
+		if (this.multipathMode != MultipathMode.OFF)
+		{
+			topUp(controller, connections);
+		}
+	}
+
+	/*
+	 * activate the best connections not activated yet until there are
+	 * maxPaths activated ones again
+	 */
+	private void topUp(int controller, ConnectionSet connections) {
+		int activated = connections.countActivated();
+		for (ControllerConnection c : connections.asList())
+		{
+			if (activated >= this.maxPaths)
+				break;
+			if (!c.isActivated())
+			{
+				activateConnection(controller, c.getSwitch(), c.getPort(), c.getHops());
+				activated++;
+			}
+		}
+	}
+
+	/**
+	 * Record a round-trip time sample of a connection. If the connection
+	 * becomes the best one it is activated (unless it already is) and used
+	 * from now on.
+	 */
+	public synchronized void updateRtt(int controller, SwitchPort key, double rttMillis, double alpha) {
+		ConnectionSet connections = this.connections.get(controller);
+		if (connections == null)
+		{
+			return;
+		}
+		if (connections.updateRtt(key, rttMillis, alpha) != null)
+		{
+			useBest(controller, connections);
+		}
+	}
+
+	/**
+	 * Set the extra costs of a congested egress port for every connection
+	 * starting there and switch to the new best connections.
+	 */
+	public synchronized void updateLoad(SwitchPort key, int loadCosts) {
+		Set<Integer> controllers = this.controllersAt.get(key);
+		if (controllers == null)
+		{
+			return;
+		}
+		for (Integer controller : controllers)
+		{
+			ConnectionSet connections = this.connections.get(controller);
+			if (connections == null)
+				continue;
+			if (connections.updateLoad(key, loadCosts) != null)
+			{
+				useBest(controller, connections);
+			}
+		}
+	}
+
+	/*
+	 * activate the best connection after re-ranking, if it differs from the
+	 * used one and passes the hysteresis
+	 */
+	private void useBest(int controller, ConnectionSet connections) {
+		ControllerConnection best = connections.first();
+		if (best == null || best == connections.current() || !switchTo(controller, connections, best))
+		{
+			return;
+		}
+		EvalCollector.get().incrementNewBestConection();
+		System.out.println("Best connection to " + controller + " is now " + best.getSwitch().getId().getLong() + ":"
+				+ best.getPort().getPortNumber() + ", costs=" + best.getCosts());
+		if (!best.isActivated())
+		{
+			activateConnection(controller, best.getSwitch(), best.getPort(), best.getHops());
+		}
+	}
+
+	/*
+	 * use the candidate from now on if the hysteresis allows it, otherwise
+	 * count the suppressed switch and check again after the hold-down
+	 * 
+	 * @return true if the candidate is used now
+	 */
+	private boolean switchTo(int controller, ConnectionSet connections, ControllerConnection candidate) {
+		long now = System.currentTimeMillis();
+		long delay = connections.switchDelay(candidate, now);
+		if (delay == 0)
+		{
+			connections.use(candidate, now);
+			return true;
+		}
+		if (connections.suppress(candidate))
+		{
+			EvalCollector.get().incrementSuppressedFlips();
+			System.out.println("Keep connection to " + controller + ", " + candidate.getSwitch().getId().getLong() + ":"
+					+ candidate.getPort().getPortNumber() + " with costs=" + candidate.getCosts() + " is "
+					+ (delay > 0 ? "held down for " + delay + "ms" : "not cheap enough"));
+		}
+		if (delay > 0)
+		{
+			scheduleSwitch(controller, delay);
+		}
+		return false;
+	}
+
+	private void scheduleSwitch(final int controller, long delay) {
+		ScheduledExecutorService executor = this.hysteresisExecutor;
+		if (executor == null)
+		{
+			return;
+		}
+		ScheduledFuture<?> pending = executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (ConnectionManager.this)
+				{
+					pendingSwitches.remove(controller);
+					ConnectionSet connections = ConnectionManager.this.connections.get(controller);
+					if (connections != null)
+					{
+						useBest(controller, connections);
+					}
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+		ScheduledFuture<?> replaced = this.pendingSwitches.put(controller, pending);
+		if (replaced != null)
+		{
+			replaced.cancel(false);
+		}
+	}
+
 	/**
 	 * install rule to allow incoming controller messages on this port
 	 * 
@@ -196,22 +564,20 @@ public class ConnectionManager {
 	 */
 	public void installLastHopCCRulePath(IOFSwitch sw, OFPort inPort) {
 		OFFlowAdd modMsg = OFMessageBuilder.flowModControllerPath(sw, inPort, this.controllerId);
-		sw.write(modMsg);
-		EvalCollector.get().incrementRules();
+		FlowRuleRegistry.get().install(sw, modMsg, OFPort.CONTROLLER);
 	}
 
 	/*
 	 * find controller where a message came from
 	 */
 	private int getPreviousController(IOFSwitch inSwitch, OFPort inPort, int excludedController) {
-		for (Integer connectedController : this.getConnectedController())
+		Set<Integer> controllers = this.controllersAt.get(new SwitchPort(inSwitch, inPort));
+		if (controllers != null)
 		{
-			// do not send to source controller
-			if (connectedController == excludedController)
-				continue;
-			for (ControllerConnection c : this.getAllConnectionsTo(connectedController))
+			for (Integer connectedController : controllers)
 			{
-				if (c.getSwitch().getId().compareTo(inSwitch.getId()) == 0 && c.getPort().compareTo(inPort) == 0)
+				// do not send to source controller
+				if (connectedController != excludedController)
 				{
 					return connectedController;
 				}
@@ -220,40 +586,68 @@ public class ConnectionManager {
 		return -1;
 	}
 
-	private List<ControllerConnection> lazyLoad(int foreignController) {
-		if (!this.connections.containsKey(foreignController))
-		{
-			this.connections.put(foreignController, new LinkedList<>());
-		}
-		return this.connections.get(foreignController);
-	}
-
 	public boolean hasConnectionTo(int foreignControllerId) {
-		return this.connections.containsKey(foreignControllerId) && !this.connections.get(foreignControllerId).isEmpty();
+		ConnectionSet connections = this.connections.get(foreignControllerId);
+		return connections != null && !connections.isEmpty();
 	}
 
 	public boolean hasConnectionAt(int foreignControllerId, IOFSwitch sw, OFPort port) {
-		if (this.connections.containsKey(foreignControllerId))
-		{
-			for(ControllerConnection c : this.connections.get(foreignControllerId))
-			{
-				if(c.getSwitch().getId().compareTo(sw.getId()) == 0 && c.getPort().compareTo(port) == 0)
-					return true;
-			}
-		}
-		return false;
+		Set<Integer> controllers = this.controllersAt.get(new SwitchPort(sw, port));
+		return controllers != null && controllers.contains(foreignControllerId);
+	}
+
+	/**
+	 * @return the egress ports of all known connections
+	 */
+	public Set<SwitchPort> getConnectionPorts() {
+		return Collections.unmodifiableSet(this.controllersAt.keySet());
 	}
 
 	public Set<Integer> getConnectedController() {
-		return this.connections.keySet();
+		return Collections.unmodifiableSet(this.connections.keySet());
 	}
 
+	/**
+	 * @return the connection in use or null if the controller is unknown
+	 */
 	public ControllerConnection getConnectionTo(int controller) {
-		return this.connections.get(controller).get(0);
+		ConnectionSet connections = this.connections.get(controller);
+		return connections != null ? connections.current() : null;
+	}
+
+	/**
+	 * Choose the connection for the next message according to the multipath
+	 * mode. Messages with the same flow key stay on one path as long as the
+	 * activated connections do not change.
+	 * 
+	 * @return the connection or null if the controller is unknown
+	 */
+	public ControllerConnection selectConnection(int controller, long flowKey) {
+		ConnectionSet connections = this.connections.get(controller);
+		if (connections == null)
+		{
+			return null;
+		}
+		if (this.multipathMode == MultipathMode.OFF)
+		{
+			return connections.current();
+		}
+		if (flowKey != NO_FLOW_KEY)
+		{
+			// spread the key over [0, 1)
+			long h = flowKey * 0x9E3779B97F4A7C15L;
+			return connections.pickWeighted((h >>> 11) * 0x1.0p-53);
+		}
+		if (this.multipathMode == MultipathMode.ROUND_ROBIN)
+		{
+			return connections.nextRoundRobin();
+		}
+		return connections.pickWeighted(ThreadLocalRandom.current().nextDouble());
 	}
 
 	public List<ControllerConnection> getAllConnectionsTo(Integer controller) {
-		return this.connections.get(controller);
+		ConnectionSet connections = this.connections.get(controller);
+		return connections != null ? connections.asList() : Collections.<ControllerConnection>emptyList();
 	}
 
 }
\ No newline at end of file
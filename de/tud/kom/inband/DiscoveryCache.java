@@ -0,0 +1,91 @@
+/**
+    Licensed to the Apache Software Foundation (ASF) under one
+    or more contributor license agreements.  See the NOTICE file
+    distributed with this work for additional information
+    regarding copyright ownership.  The ASF licenses this file
+    to you under the Apache License, Version 2.0 (the
+    "License"); you may not use this file except in compliance
+    with the License.  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on an
+    "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied.  See the License for the
+    specific language governing permissions and limitations
+    under the License.
+    
+    
+    @author Rhaban Hark
+**/
+
+
+package de.tud.kom.inband;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import de.tud.kom.inband.util.SwitchPort;
+
+/**
+ * Bounded LRU of recently seen discovery announcements, keyed by (origin
+ * controller, sequence number). For every announcement it keeps the best
+ * costs seen so far and the costs per switch port it arrived at, so copies
+ * circulating through the network are recognized.
+ */
+public class DiscoveryCache {
+
+	public enum Verdict {
+		/* same announcement at the same port, not better than before */
+		DUPLICATE,
+		/* store the connection, but the announcement is not better */
+		STORE,
+		/* best copy of the announcement so far, store and forward it */
+		FORWARD
+	}
+
+	private static class Announcement {
+		int bestCosts;
+		final Map<SwitchPort, Integer> costsAt = new HashMap<>();
+	}
+
+	private LinkedHashMap<Long, Announcement> announcements;
+
+	public DiscoveryCache(final int capacity) {
+		this.announcements = new LinkedHashMap<Long, Announcement>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Announcement> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	public synchronized Verdict offer(int origin, int sequence, SwitchPort at, int costs) {
+		long key = (long) origin << 32 | (sequence & 0xffffffffL);
+		Announcement announcement = this.announcements.get(key);
+		if (announcement == null)
+		{
+			announcement = new Announcement();
+			announcement.bestCosts = costs;
+			announcement.costsAt.put(at, costs);
+			this.announcements.put(key, announcement);
+			return Verdict.FORWARD;
+		}
+		Integer previous = announcement.costsAt.get(at);
+		if (previous != null && costs >= previous)
+		{
+			return Verdict.DUPLICATE;
+		}
+		announcement.costsAt.put(at, costs);
+		if (costs < announcement.bestCosts)
+		{
+			announcement.bestCosts = costs;
+			return Verdict.FORWARD;
+		}
+		return Verdict.STORE;
+	}
+}
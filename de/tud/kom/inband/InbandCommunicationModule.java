@@ -22,28 +22,42 @@
 
 package de.tud.kom.inband;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.projectfloodlight.openflow.protocol.OFFlowAdd;
+import org.projectfloodlight.openflow.protocol.OFFlowRemoved;
 import org.projectfloodlight.openflow.protocol.OFMessage;
+import org.projectfloodlight.openflow.protocol.OFPacketIn;
 import org.projectfloodlight.openflow.protocol.OFPacketOut;
 import org.projectfloodlight.openflow.protocol.OFPortDesc;
 import org.projectfloodlight.openflow.protocol.OFType;
 import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.OFPort;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.tud.kom.inband.eval.EvalCollector;
 import de.tud.kom.inband.service.ChatApplication;
 import de.tud.kom.inband.service.ControllerCommunicationService;
+import de.tud.kom.inband.util.ConnectionSet;
+import de.tud.kom.inband.util.ControlHeader;
 import de.tud.kom.inband.util.ControllerConnection;
+import de.tud.kom.inband.util.FlowRuleRegistry;
+import de.tud.kom.inband.util.HashedTimerWheel;
+import de.tud.kom.inband.util.InbandFrame;
 import de.tud.kom.inband.util.OFMessageBuilder;
+import de.tud.kom.inband.util.Routing;
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IFloodlightProviderService;
 import net.floodlightcontroller.core.IOFMessageListener;
@@ -55,16 +69,26 @@ import net.floodlightcontroller.core.module.FloodlightModuleContext;
 import net.floodlightcontroller.core.module.FloodlightModuleException;
 import net.floodlightcontroller.core.module.IFloodlightModule;
 import net.floodlightcontroller.core.module.IFloodlightService;
-import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
 
 public class InbandCommunicationModule implements IOFMessageListener, IFloodlightModule, ControllerCommunicationService, IOFSwitchListener {
 
 	protected IFloodlightProviderService floodlightProvider;
 	private IOFSwitchService switchService;
+	private IThreadPoolService threadPoolService;
 	protected Set<Long> macAddresses;
 	private MessageHandler messageHandler;
 	private ConnectionManager connectionManager;
-	private Set<MessageListener> listeners;
+	private MessageBatcher messageBatcher;
+	private MessageFragmenter messageFragmenter;
+	private HashedTimerWheel timerWheel;
+	private KeepAliveScheduler keepAliveScheduler;
+	private MeterProtection meterProtection;
+	private LatencyProber latencyProber;
+	private PortLoadMonitor portLoadMonitor;
+	private ReliableChannel reliableChannel;
+	private RequestTracker requestTracker;
+	private MessageDispatcher messageDispatcher;
 	private int controllerId;
 	protected static Logger logger;
 
@@ -102,6 +126,7 @@ public class InbandCommunicationModule implements IOFMessageListener, IFloodligh
 		Collection<Class<? extends IFloodlightService>> l = new ArrayList<Class<? extends IFloodlightService>>();
 		l.add(IFloodlightProviderService.class);
 		l.add(IOFSwitchService.class);
+		l.add(IThreadPoolService.class);
 		return l;
 	}
 
@@ -109,66 +134,206 @@ public class InbandCommunicationModule implements IOFMessageListener, IFloodligh
 	public void init(FloodlightModuleContext context) throws FloodlightModuleException {
 		floodlightProvider = context.getServiceImpl(IFloodlightProviderService.class);
 		switchService = context.getServiceImpl(IOFSwitchService.class);
+		threadPoolService = context.getServiceImpl(IThreadPoolService.class);
 		logger = LoggerFactory.getLogger(InbandCommunicationModule.class);
 		
 		Map<String, String> configOptions = context.getConfigParams(this);
         this.controllerId = Integer.parseInt(configOptions.get("id"));
         EvalCollector.get().setControllerId(this.controllerId);
-        this.listeners = new HashSet<>();
+        // dedicated table for all in-band rules (OpenFlow 1.1+), 0 shares the first table
+        OFMessageBuilder.setInbandTable(getConfig(configOptions, "inbandTableId", 0));
+        // "text" keeps the old key/value payloads for controllers without binary header support
+        OFMessageBuilder.setTextControlFormat("text".equals(configOptions.get("controlFormat")));
+        // listeners run on virtual threads (or a cached pool) unless a fixed number of threads is configured
+        int dispatchThreads = getConfig(configOptions, "dispatchThreads", 0);
+        ExecutorService dispatchExecutor = dispatchThreads > 0 ? Executors.newFixedThreadPool(dispatchThreads) : MessageDispatcher.defaultExecutor();
+        this.messageDispatcher = new MessageDispatcher(dispatchExecutor, getConfig(configOptions, "dispatchQueueSize", 1024),
+        		"block".equals(configOptions.get("dispatchOverflow")) ? MessageDispatcher.OverflowPolicy.BLOCK : MessageDispatcher.OverflowPolicy.DROP);
 		
-        this.connectionManager = new ConnectionManager(controllerId);
-		this.messageHandler = new MessageHandler(controllerId, this.connectionManager, this.switchService);
+        // multipath: off, weighted or roundrobin
+        String multipath = configOptions.get("multipath");
+        ConnectionManager.MultipathMode multipathMode = ConnectionManager.MultipathMode.OFF;
+        if ("weighted".equals(multipath))
+        	multipathMode = ConnectionManager.MultipathMode.WEIGHTED;
+        else if ("roundrobin".equals(multipath))
+        	multipathMode = ConnectionManager.MultipathMode.ROUND_ROBIN;
+        // install second best paths as OpenFlow fast-failover groups
+        Routing.setFastFailover(Boolean.parseBoolean(configOptions.get("fastFailover")));
+        // one rule per target controller on transit switches instead of one per source, target and in port
+        boolean aggregated = "aggregated".equals(configOptions.get("ruleMode"));
+        // aggregated rules match the target only, a second path to it would overwrite the first on shared switches
+        if (aggregated && multipathMode != ConnectionManager.MultipathMode.OFF)
+        {
+        	throw new FloodlightModuleException("ruleMode=aggregated cannot be combined with multipath=" + multipath);
+        }
+        Routing.setAggregatedRules(aggregated);
+        this.connectionManager = new ConnectionManager(controllerId, multipathMode, getConfig(configOptions, "multipathMaxPaths", 4));
+		// keep-alive only for connections which would idle out (at 3/4 of the idle timeout) and are not quiet
+		this.timerWheel = new HashedTimerWheel(100, 512);
+		int keepAliveInterval = OFMessageBuilder.IDLE_TIMEOUT * 750;
+		this.keepAliveScheduler = new KeepAliveScheduler(controllerId, this.connectionManager, this.timerWheel, keepAliveInterval,
+				getConfig(configOptions, "keepAliveQuietMs", 4 * keepAliveInterval));
+		this.connectionManager.addActivationListener(this.keepAliveScheduler);
+		ReassemblyBuffer reassemblyBuffer = new ReassemblyBuffer(getConfig(configOptions, "reassemblyMaxMessages", 64),
+				getConfig(configOptions, "reassemblyMaxBytes", 16 * 1024 * 1024), getConfig(configOptions, "reassemblyTimeoutMs", 5000));
+		// latency-aware ranking: probe connections of active peers (0 disables), costs per millisecond of round-trip time
+		int probeInterval = getConfig(configOptions, "probeIntervalMs", 0);
+		ConnectionSet.setCostsPerRttMilli(getConfig(configOptions, "costsPerRttMs", 1.0));
+		if (probeInterval > 0)
+		{
+			this.latencyProber = new LatencyProber(controllerId, this.connectionManager, probeInterval, 10 * probeInterval);
+		}
+		// damp switches between connections of similar costs (0 disables)
+		this.connectionManager.setSwitchHysteresis(this.threadPoolService.getScheduledExecutor(),
+				getConfig(configOptions, "switchMinImprovementPct", 0) / 100.0, getConfig(configOptions, "switchHoldDownMs", 0),
+				getConfig(configOptions, "switchFlapHalfLifeMs", 60000));
+		// discovery flood suppression: recently seen announcements and jittered rebroadcasts
+		this.connectionManager.setDiscoveryJitter(this.threadPoolService.getScheduledExecutor(), getConfig(configOptions, "discoveryJitterMs", 20));
+		// send path: (batcher ->) fragmenter -> packet-out
+		int mtu = getConfig(configOptions, "mtu", 1500);
+		this.messageFragmenter = new MessageFragmenter(controllerId, new PayloadSender() {
+			@Override
+			public boolean send(int controller, long flowKey, byte[] payload, int offset, int length) {
+				return sendPayload(controller, flowKey, payload, offset, length);
+			}
+		}, mtu);
+		if (Boolean.parseBoolean(configOptions.get("batching")))
+		{
+			int deadline = getConfig(configOptions, "batchDeadlineUs", 200);
+			this.messageBatcher = new MessageBatcher(controllerId, this.messageFragmenter, this.threadPoolService.getScheduledExecutor(),
+					getConfig(configOptions, "batchMtu", mtu), deadline);
+		}
+		// reliable streams on top, every peer is acked but only the configured ones are sent to reliably
+		String reliable = configOptions.get("reliable");
+		Set<Integer> reliablePeers = new HashSet<>();
+		if (reliable != null && reliable.trim().equalsIgnoreCase("true"))
+		{
+			reliablePeers = null;
+		}
+		else if (reliable != null && !reliable.trim().isEmpty() && !reliable.trim().equalsIgnoreCase("false"))
+		{
+			for (String peer : reliable.split(","))
+			{
+				reliablePeers.add(Integer.parseInt(peer.trim()));
+			}
+		}
+		this.reliableChannel = new ReliableChannel(controllerId, new PayloadSender() {
+			@Override
+			public boolean send(int controller, long flowKey, byte[] payload, int offset, int length) {
+				return sendUnreliable(controller, flowKey, payload, offset, length);
+			}
+		}, this.threadPoolService.getScheduledExecutor(), getConfig(configOptions, "reliableWindow", 64),
+				getConfig(configOptions, "reliableQueue", 1024), getConfig(configOptions, "reliableMinRtoMs", 20),
+				getConfig(configOptions, "reliableAckDelayMs", 5), reliablePeers);
+		// requests and responses take the reliable stream to peers configured for it
+		this.requestTracker = new RequestTracker(controllerId, new PayloadSender() {
+			@Override
+			public boolean send(int controller, long flowKey, byte[] payload, int offset, int length) {
+				if (reliableChannel.isReliable(controller))
+				{
+					return !reliableChannel.send(controller, flowKey, payload, offset, length).isCompletedExceptionally();
+				}
+				return sendUnreliable(controller, flowKey, payload, offset, length);
+			}
+		}, this.timerWheel, dispatchExecutor, getConfig(configOptions, "maxPendingRequests", 4096));
+
+		this.messageHandler = new MessageHandler(controllerId, this.connectionManager, this.switchService, reassemblyBuffer,
+				this.messageDispatcher, new DiscoveryCache(getConfig(configOptions, "discoveryCacheSize", 1024)), this.latencyProber,
+				this.reliableChannel, this.requestTracker);
 		
+		// meter discoveries and activations per switch (packets per second, 0 disables)
+		int meterRate = getConfig(configOptions, "discoveryMeterRate", 0);
+		if (meterRate > 0)
+		{
+			this.meterProtection = new MeterProtection(meterRate, getConfig(configOptions, "discoveryMeterBurst", 2 * meterRate),
+					getConfig(configOptions, "meterStatsIntervalMs", 10000));
+		}
+
+		// extra costs of congested ports from port statistics (0 disables)
+		int loadCosts = getConfig(configOptions, "loadCosts", 0);
+		if (loadCosts > 0)
+		{
+			this.portLoadMonitor = new PortLoadMonitor(this.connectionManager, this.switchService, loadCosts,
+					getConfig(configOptions, "linkSpeedMbps", 1000), getConfig(configOptions, "portStatsMinIntervalMs", 500),
+					getConfig(configOptions, "portStatsMaxIntervalMs", 8000));
+		}
+
 		// test module
 		ChatApplication chat = new ChatApplication(); 
 		this.registerMessageListener(chat);
 		chat.testCommunication(this);
 	}
 
+	private static int getConfig(Map<String, String> configOptions, String key, int defaultValue) {
+		String value = configOptions.get(key);
+		return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+	}
+
+	private static double getConfig(Map<String, String> configOptions, String key, double defaultValue) {
+		String value = configOptions.get(key);
+		return value != null ? Double.parseDouble(value.trim()) : defaultValue;
+	}
+
 	@Override
 	public void startUp(FloodlightModuleContext context) throws FloodlightModuleException {
 		System.out.println("startUp");
 		floodlightProvider.addOFMessageListener(OFType.PACKET_IN, this);
+		floodlightProvider.addOFMessageListener(OFType.FLOW_REMOVED, this);
 		switchService.addOFSwitchListener(this);
-		keepAlive();
-	}
-
-	private void keepAlive() {
-		new Thread(){
-			public void run(){
-				for(;;)
-				{
-					try
-					{
-						Thread.sleep(OFMessageBuilder.IDLE_TIMEOUT*750); // was in seconds, now milliseconds and only 3/4
-						for (Iterator<Integer> i = getConnectedController().iterator(); i.hasNext();)
-						{
-							int c = (int) i.next();
-							sendMessageToController(c, "keep_alive");
-						}
-					} catch (InterruptedException e)
-					{
-						e.printStackTrace();
-					}
-				}
-			}
-		}.start();
+		this.timerWheel.start(this.threadPoolService.getScheduledExecutor());
+		if (this.latencyProber != null)
+		{
+			this.latencyProber.start(this.threadPoolService.getScheduledExecutor());
+		}
+		if (this.meterProtection != null)
+		{
+			this.meterProtection.start(this.threadPoolService.getScheduledExecutor());
+		}
+		if (this.portLoadMonitor != null)
+		{
+			this.portLoadMonitor.start(this.threadPoolService.getScheduledExecutor());
+		}
 	}
 
 	@Override
 	public net.floodlightcontroller.core.IListener.Command receive(IOFSwitch sw, OFMessage msg,
 			FloodlightContext cntx) {
-		Ethernet eth = IFloodlightProviderService.bcStore.get(cntx, IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
+		if (msg.getType() == OFType.FLOW_REMOVED)
+		{
+			OFFlowRemoved removed = (OFFlowRemoved) msg;
+			// rules of other modules may match the same UDP ports
+			if (OFMessageBuilder.getRuleKind(removed.getCookie()) != OFMessageBuilder.RULE_NONE)
+			{
+				FlowRuleRegistry.get().onFlowRemoved(sw, removed);
+			}
+			return Command.CONTINUE;
+		}
+		OFPacketIn packetIn = (OFPacketIn) msg;
+		// in-band rules are tagged with a cookie, switches before OpenFlow 1.3 do not report it
+		int kind = OFMessageBuilder.getRuleKind(packetIn);
+		if (kind == OFMessageBuilder.RULE_NONE && (OFMessageBuilder.reportsCookie(packetIn) || !InbandFrame.hasInbandVlan(packetIn.getData())))
+		{
+			return Command.CONTINUE;
+		}
+		InbandFrame frame = InbandFrame.parse(packetIn.getData());
+		if (frame == null)
+		{
+			return Command.CONTINUE;
+		}
 
-		if(eth.getSourceMACAddress().compareTo(OFMessageBuilder.DISCOVERY_MAC) == 0) {
-			this.messageHandler.processDiscovery(sw, msg, eth);
+		if (kind == OFMessageBuilder.RULE_LAST_HOP || kind == OFMessageBuilder.RULE_MISS)
+		{
+			this.messageHandler.processCommunicationMessage(sw, msg, frame);
+		}
+		else if (frame.hasSourceMac(OFMessageBuilder.DISCOVERY_MAC)) {
+			this.messageHandler.processDiscovery(sw, msg, frame);
 		}
-		else if (eth.getSourceMACAddress().compareTo(OFMessageBuilder.ACTIVATE_MAC) == 0) {
-			this.messageHandler.processActivation(sw, msg, eth);
+		else if (frame.hasSourceMac(OFMessageBuilder.ACTIVATE_MAC)) {
+			this.messageHandler.processActivation(sw, msg, frame);
 		}
-		else if (eth.getVlanID() == OFMessageBuilder.OF_VLAN_COMMUNICATION.getVlan())
+		else if (frame.getVlan() == OFMessageBuilder.OF_VLAN_COMMUNICATION.getVlan())
 		{
-			this.messageHandler.processCommunicationMessage(eth, listeners);
+			this.messageHandler.processCommunicationMessage(sw, msg, frame);
 		}
 		
 		return Command.CONTINUE;
@@ -178,6 +343,17 @@ public class InbandCommunicationModule implements IOFMessageListener, IFloodligh
 	public void switchAdded(DatapathId switchId) {
 		System.out.println("switchAdded " + switchId.toString());
 		IOFSwitch activeSwitch = this.switchService.getActiveSwitch(switchId);
+		if (OFMessageBuilder.usesInbandTable(activeSwitch))
+		{
+			activeSwitch.write(OFMessageBuilder.flowModGotoInbandTable(activeSwitch, OFMessageBuilder.OF_VLAN_DISCOVERY));
+			activeSwitch.write(OFMessageBuilder.flowModGotoInbandTable(activeSwitch, OFMessageBuilder.OF_VLAN_COMMUNICATION));
+		}
+		activeSwitch.write(OFMessageBuilder.flowModCommunicationMiss(activeSwitch));
+		if (this.meterProtection != null)
+		{
+			this.meterProtection.install(activeSwitch);
+			return;
+		}
 		OFFlowAdd flowAdd = OFMessageBuilder.flowModDiscovery(activeSwitch);
 		activeSwitch.write(flowAdd);
 	}
@@ -188,9 +364,8 @@ public class InbandCommunicationModule implements IOFMessageListener, IFloodligh
 		case ADD:
 			break;
 		case DELETE:
-			break;
 		case DOWN:
-			// TODO
+			failover(switchId, port.getPortNo());
 			break;
 		case OTHER_UPDATE:
 			break;
@@ -204,8 +379,40 @@ public class InbandCommunicationModule implements IOFMessageListener, IFloodligh
 		}
 	}
 
+	/*
+	 * drop everything using the port and move the affected controllers to
+	 * their next best connection
+	 */
+	private void failover(DatapathId switchId, OFPort port) {
+		long start = System.nanoTime();
+		IOFSwitch switch_ = this.switchService.getSwitch(switchId);
+		if (switch_ == null)
+		{
+			return;
+		}
+		Routing.removeIntraNetworkLinks(switch_, port);
+		FlowRuleRegistry.get().portDown(switchId.getLong(), port);
+		Set<Integer> affected = this.connectionManager.removeConnectionsAt(switch_, port);
+		if (!affected.isEmpty())
+		{
+			long latency = (System.nanoTime() - start) / 1000;
+			EvalCollector.get().addRerouteLatency(latency);
+			System.out.println("Rerouted " + affected + " after " + switchId.getLong() + ":" + port.getPortNumber() + " went down in " + latency + "us");
+		}
+	}
+
 	@Override
-	public void switchRemoved(DatapathId switchId) {}
+	public void switchRemoved(DatapathId switchId) {
+		FlowRuleRegistry.get().switchRemoved(switchId.getLong());
+		if (this.meterProtection != null)
+		{
+			this.meterProtection.switchRemoved(switchId.getLong());
+		}
+		if (this.portLoadMonitor != null)
+		{
+			this.portLoadMonitor.switchRemoved(switchId.getLong());
+		}
+	}
 
 	@Override
 	public void switchActivated(DatapathId switchId) {}
@@ -227,19 +434,136 @@ public class InbandCommunicationModule implements IOFMessageListener, IFloodligh
 	 */
 	@Override
 	public boolean sendMessageToController(int controller, String message) {
+		return sendMessageToController(controller, message, ConnectionManager.NO_FLOW_KEY);
+	}
+
+	@Override
+	public boolean sendMessageToController(int controller, String message, long flowKey) {
+		byte[] payload = message.getBytes();
+		return sendMessage(controller, flowKey, payload, 0, payload.length);
+	}
+
+	@Override
+	public boolean sendMessageToController(int controller, byte[] message) {
+		return sendMessage(controller, ConnectionManager.NO_FLOW_KEY, message, 0, message.length);
+	}
+
+	@Override
+	public boolean sendMessageToController(int controller, byte[] message, long flowKey) {
+		return sendMessage(controller, flowKey, message, 0, message.length);
+	}
+
+	@Override
+	public boolean sendMessageToController(int controller, ByteBuffer message) {
+		return sendMessageToController(controller, message, ConnectionManager.NO_FLOW_KEY);
+	}
+
+	@Override
+	public boolean sendMessageToController(int controller, ByteBuffer message, long flowKey) {
+		if (message.hasArray())
+		{
+			return sendMessage(controller, flowKey, message.array(), message.arrayOffset() + message.position(), message.remaining());
+		}
+		byte[] payload = new byte[message.remaining()];
+		message.duplicate().get(payload);
+		return sendMessage(controller, flowKey, payload, 0, payload.length);
+	}
+
+	@Override
+	public CompletableFuture<Void> sendReliableMessageToController(int controller, byte[] message) {
+		if (!this.connectionManager.hasConnectionTo(controller))
+		{
+			CompletableFuture<Void> failed = new CompletableFuture<>();
+			failed.completeExceptionally(new IOException("No connection to controller " + controller));
+			return failed;
+		}
+		byte[] escaped = escape(controller, message, 0, message.length);
+		if (escaped != null)
+		{
+			return this.reliableChannel.send(controller, ConnectionManager.NO_FLOW_KEY, escaped, 0, escaped.length);
+		}
+		return this.reliableChannel.send(controller, ConnectionManager.NO_FLOW_KEY, message, 0, message.length);
+	}
+
+	private boolean sendMessage(int controller, long flowKey, byte[] payload, int offset, int length) {
 		if(!this.connectionManager.hasConnectionTo(controller))
 		{
 			return false;
 		}
-		byte[] msg = OFMessageBuilder.controllerMessage(this.controllerId, controller, message);
-		ControllerConnection connection = this.connectionManager.getConnectionTo(controller);
+		byte[] escaped = escape(controller, payload, offset, length);
+		if (escaped != null)
+		{
+			payload = escaped;
+			offset = 0;
+			length = escaped.length;
+		}
+		if (this.reliableChannel.isReliable(controller))
+		{
+			return !this.reliableChannel.send(controller, flowKey, payload, offset, length).isCompletedExceptionally();
+		}
+		return sendUnreliable(controller, flowKey, payload, offset, length);
+	}
+
+	/*
+	 * a message starting like a control header must not be taken for one
+	 * 
+	 * @return the message behind a DATA header or null if it needs none
+	 */
+	private byte[] escape(int controller, byte[] payload, int offset, int length) {
+		if (!ControlHeader.isBinary(payload, offset, length))
+		{
+			return null;
+		}
+		byte[] escaped = new byte[ControlHeader.LENGTH + length];
+		ControlHeader.write(escaped, 0, ControlHeader.TYPE_DATA, 0, 0, 0, this.controllerId, controller);
+		System.arraycopy(payload, offset, escaped, ControlHeader.LENGTH, length);
+		return escaped;
+	}
+
+	private boolean sendUnreliable(int controller, long flowKey, byte[] payload, int offset, int length) {
+		if (this.messageBatcher != null)
+		{
+			return this.messageBatcher.send(controller, flowKey, payload, offset, length);
+		}
+		return this.messageFragmenter.send(controller, flowKey, payload, offset, length);
+	}
+
+	private boolean sendPayload(int controller, long flowKey, byte[] payload, int offset, int length) {
+		ControllerConnection connection = this.connectionManager.selectConnection(controller, flowKey);
+		if(connection == null)
+		{
+			return false;
+		}
+		byte[] msg = OFMessageBuilder.controllerMessage(this.controllerId, controller, payload, offset, length);
 		OFPacketOut packetOut = OFMessageBuilder.packetOut(connection.getSwitch(), connection.getPort(), msg);
+		this.keepAliveScheduler.onTraffic(controller, connection);
 		return connection.getSwitch().write(packetOut);
 	}
 
+	@Override
+	public CompletableFuture<byte[]> request(int controller, byte[] payload, Duration timeout) {
+		if (!this.connectionManager.hasConnectionTo(controller))
+		{
+			CompletableFuture<byte[]> failed = new CompletableFuture<>();
+			failed.completeExceptionally(new IOException("No connection to controller " + controller));
+			return failed;
+		}
+		return this.requestTracker.request(controller, payload, timeout.toMillis());
+	}
+
+	@Override
+	public void registerRequestHandler(RequestHandler h) {
+		this.requestTracker.setHandler(h);
+	}
+
 	@Override
 	public void registerMessageListener(MessageListener l) {
-		this.listeners.add(l);
+		this.messageDispatcher.register(l);
+	}
+
+	@Override
+	public void registerBinaryMessageListener(BinaryMessageListener l) {
+		this.messageDispatcher.register(l);
 	}
 }
 
@@ -0,0 +1,127 @@
+/**
+    Licensed to the Apache Software Foundation (ASF) under one
+    or more contributor license agreements.  See the NOTICE file
+    distributed with this work for additional information
+    regarding copyright ownership.  The ASF licenses this file
+    to you under the Apache License, Version 2.0 (the
+    "License"); you may not use this file except in compliance
+    with the License.  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on an
+    "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied.  See the License for the
+    specific language governing permissions and limitations
+    under the License.
+    
+    
+    @author Rhaban Hark
+**/
+
+package de.tud.kom.inband;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.projectfloodlight.openflow.protocol.OFPacketOut;
+
+import de.tud.kom.inband.util.ControlHeader;
+import de.tud.kom.inband.util.ControllerConnection;
+import de.tud.kom.inband.util.HashedTimerWheel;
+import de.tud.kom.inband.util.OFMessageBuilder;
+
+/**
+ * Keeps the rules along activated connections from idling out.
+ * 
+ * Every activated connection has one timeout on a {@link HashedTimerWheel}.
+ * When it expires and real traffic has been sent on the connection in the
+ * meantime, the timeout is just moved; only a connection which would
+ * otherwise idle out gets a keep-alive. Keep-alives are binary control frames
+ * which are consumed by the receiving MessageHandler and never reach the
+ * message listeners.
+ * 
+ * Connections to quiet peers are not kept alive: once no real traffic has
+ * been sent for quietMillis the connection is no longer tracked and its
+ * rules idle out. The controllers along the path reinstall them for the next
+ * message (see FlowRuleRegistry), which tracks the connection again.
+ */
+public class KeepAliveScheduler implements ConnectionManager.ActivationListener {
+
+	private int controllerId;
+	private ConnectionManager connectionManager;
+	private HashedTimerWheel wheel;
+	private long intervalMillis;
+	private long quietMillis;
+	private Set<ControllerConnection> tracked;
+
+	public KeepAliveScheduler(int controllerId, ConnectionManager connectionManager, HashedTimerWheel wheel, long intervalMillis,
+			long quietMillis) {
+		this.controllerId = controllerId;
+		this.connectionManager = connectionManager;
+		this.wheel = wheel;
+		this.intervalMillis = intervalMillis;
+		this.quietMillis = quietMillis;
+		this.tracked = Collections.newSetFromMap(new ConcurrentHashMap<ControllerConnection, Boolean>());
+	}
+
+	@Override
+	public void onActivated(int controller, ControllerConnection connection) {
+		if (this.tracked.add(connection))
+		{
+			schedule(controller, connection, this.intervalMillis);
+		}
+	}
+
+	/**
+	 * record real traffic sent on the connection
+	 */
+	public void onTraffic(int controller, ControllerConnection connection) {
+		connection.setLastSent(System.currentTimeMillis());
+		if (this.tracked.add(connection))
+		{
+			schedule(controller, connection, this.intervalMillis);
+		}
+	}
+
+	private void schedule(final int controller, final ControllerConnection connection, long delay) {
+		this.wheel.newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				check(controller, connection);
+			}
+		}, delay);
+	}
+
+	private void check(int controller, ControllerConnection connection) {
+		// connection has been withdrawn
+		if (!this.connectionManager.getAllConnectionsTo(controller).contains(connection))
+		{
+			this.tracked.remove(connection);
+			return;
+		}
+		long idle = System.currentTimeMillis() - connection.getLastSent();
+		if (idle < this.intervalMillis)
+		{
+			schedule(controller, connection, this.intervalMillis - idle);
+			return;
+		}
+		// quiet peer, let the path idle out
+		if (idle >= this.quietMillis)
+		{
+			this.tracked.remove(connection);
+			return;
+		}
+		sendKeepAlive(controller, connection);
+		schedule(controller, connection, this.intervalMillis);
+	}
+
+	private void sendKeepAlive(int controller, ControllerConnection connection) {
+		byte[] frame = ControlHeader.encode(ControlHeader.TYPE_KEEPALIVE, 0, 0, 0, this.controllerId, controller);
+		byte[] msg = OFMessageBuilder.controllerMessage(this.controllerId, controller, frame, 0, frame.length);
+		OFPacketOut packetOut = OFMessageBuilder.packetOut(connection.getSwitch(), connection.getPort(), msg);
+		connection.getSwitch().write(packetOut);
+	}
+}
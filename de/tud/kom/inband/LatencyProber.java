@@ -0,0 +1,144 @@
+/**
+    Licensed to the Apache Software Foundation (ASF) under one
+    or more contributor license agreements.  See the NOTICE file
+    distributed with this work for additional information
+    regarding copyright ownership.  The ASF licenses this file
+    to you under the Apache License, Version 2.0 (the
+    "License"); you may not use this file except in compliance
+    with the License.  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on an
+    "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied.  See the License for the
+    specific language governing permissions and limitations
+    under the License.
+    
+    
+    @author Rhaban Hark
+**/
+
+
+package de.tud.kom.inband;
+
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.projectfloodlight.openflow.protocol.OFPacketOut;
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.OFPort;
+
+import de.tud.kom.inband.util.ControlHeader;
+import de.tud.kom.inband.util.ControllerConnection;
+import de.tud.kom.inband.util.OFMessageBuilder;
+import de.tud.kom.inband.util.SwitchPort;
+
+/**
+ * Measures the round-trip time of every activated connection with periodic
+ * probes and feeds it into the ranking of the connections.
+ * 
+ * A probe is sent over one connection and answered by the foreign controller
+ * over its own best connection back, it carries the send time and the
+ * connection it was sent on. Only controllers which have been sent messages
+ * recently are probed, so quiet peers stay quiet.
+ */
+public class LatencyProber {
+
+	/* weight of a new sample in the moving average */
+	public static final double ALPHA = 0.25;
+
+	/* header, send time in nanoseconds, dpid and port of the connection */
+	private static final int PROBE_LENGTH = ControlHeader.LENGTH + 8 + 8 + 4;
+	private static final int OFFSET_SENT = ControlHeader.LENGTH;
+	private static final int OFFSET_DPID = OFFSET_SENT + 8;
+	private static final int OFFSET_PORT = OFFSET_DPID + 8;
+
+	private int controllerId;
+	private ConnectionManager connectionManager;
+	private long intervalMillis;
+	private long activeMillis;
+
+	/**
+	 * @param intervalMillis
+	 *            between two probes of a connection
+	 * @param activeMillis
+	 *            controllers without traffic for this long are not probed
+	 */
+	public LatencyProber(int controllerId, ConnectionManager connectionManager, long intervalMillis, long activeMillis) {
+		this.controllerId = controllerId;
+		this.connectionManager = connectionManager;
+		this.intervalMillis = intervalMillis;
+		this.activeMillis = activeMillis;
+	}
+
+	public void start(ScheduledExecutorService executor) {
+		executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				probeAll();
+			}
+		}, this.intervalMillis, this.intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void probeAll() {
+		long now = System.currentTimeMillis();
+		for (Integer controller : this.connectionManager.getConnectedController())
+		{
+			boolean active = false;
+			for (ControllerConnection c : this.connectionManager.getAllConnectionsTo(controller))
+			{
+				active |= now - c.getLastSent() < this.activeMillis;
+			}
+			if (!active)
+			{
+				continue;
+			}
+			for (ControllerConnection c : this.connectionManager.getAllConnectionsTo(controller))
+			{
+				if (c.isActivated())
+				{
+					probe(controller, c);
+				}
+			}
+		}
+	}
+
+	private void probe(int controller, ControllerConnection connection) {
+		byte[] frame = new byte[PROBE_LENGTH];
+		ControlHeader.write(frame, 0, ControlHeader.TYPE_PROBE, 0, 0, 0, this.controllerId, controller);
+		ControlHeader.putLong(frame, OFFSET_DPID, connection.getSwitch().getId().getLong());
+		ControlHeader.putInt(frame, OFFSET_PORT, connection.getPort().getPortNumber());
+		ControlHeader.putLong(frame, OFFSET_SENT, System.nanoTime());
+		byte[] msg = OFMessageBuilder.controllerMessage(this.controllerId, controller, frame, 0, frame.length);
+		OFPacketOut packetOut = OFMessageBuilder.packetOut(connection.getSwitch(), connection.getPort(), msg);
+		connection.getSwitch().write(packetOut);
+	}
+
+	public static boolean isProbe(byte[] data, int offset, int length) {
+		return length >= PROBE_LENGTH && ControlHeader.isBinary(data, offset, length) && ControlHeader.getType(data, offset) == ControlHeader.TYPE_PROBE;
+	}
+
+	public static boolean isProbeReply(byte[] data, int offset, int length) {
+		return length >= PROBE_LENGTH && ControlHeader.isBinary(data, offset, length)
+				&& ControlHeader.getType(data, offset) == ControlHeader.TYPE_PROBE_REPLY;
+	}
+
+	/**
+	 * @return the reply to a probe received by controllerId
+	 */
+	public static byte[] reply(byte[] probe, int offset, int length, int controllerId) {
+		byte[] reply = Arrays.copyOfRange(probe, offset, offset + length);
+		ControlHeader.write(reply, 0, ControlHeader.TYPE_PROBE_REPLY, 0, 0, 0, controllerId, ControlHeader.getSourceController(probe, offset));
+		return reply;
+	}
+
+	public void onReply(int controller, byte[] data, int offset, int length) {
+		double rttMillis = (System.nanoTime() - ControlHeader.getLong(data, offset + OFFSET_SENT)) / 1e6;
+		SwitchPort connection = new SwitchPort(DatapathId.of(ControlHeader.getLong(data, offset + OFFSET_DPID)),
+				OFPort.of(ControlHeader.getInt(data, offset + OFFSET_PORT)));
+		this.connectionManager.updateRtt(controller, connection, rttMillis, ALPHA);
+	}
+}
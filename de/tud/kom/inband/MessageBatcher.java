@@ -0,0 +1,222 @@
+/**
+    Licensed to the Apache Software Foundation (ASF) under one
+    or more contributor license agreements.  See the NOTICE file
+    distributed with this work for additional information
+    regarding copyright ownership.  The ASF licenses this file
+    to you under the Apache License, Version 2.0 (the
+    "License"); you may not use this file except in compliance
+    with the License.  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on an
+    "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied.  See the License for the
+    specific language governing permissions and limitations
+    under the License.
+    
+    
+    @author Rhaban Hark
+**/
+
+package de.tud.kom.inband;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import de.tud.kom.inband.util.ControlHeader;
+
+/**
+ * Coalesces small messages to the same controller (and with the same flow
+ * key) into one in-band packet.
+ * 
+ * A batch starts with a {@link ControlHeader} of type
+ * {@link ControlHeader#TYPE_BATCH} followed by frames of a 2 byte length and
+ * the message. It is sent as soon as the next message would exceed the path
+ * MTU or when the deadline of its first message expires.
+ * 
+ * A batch only lives until it has been sent without a following message,
+ * so per-stream flow keys do not leave a buffer behind for every key.
+ */
+public class MessageBatcher implements PayloadSender {
+
+	/* IPv4 and UDP header */
+	private static final int IP_UDP_OVERHEAD = 28;
+	private static final int FRAME_OVERHEAD = 2;
+
+	private int controllerId;
+	private PayloadSender sender;
+	private ScheduledExecutorService scheduler;
+	private int capacity;
+	private long deadlineMicros;
+	/* per controller, per flow key */
+	private ConcurrentMap<Integer, ConcurrentMap<Long, Batch>> batches;
+
+	public MessageBatcher(int controllerId, PayloadSender sender, ScheduledExecutorService scheduler, int mtu, long deadlineMicros) {
+		this.controllerId = controllerId;
+		this.sender = sender;
+		this.scheduler = scheduler;
+		this.capacity = mtu - IP_UDP_OVERHEAD;
+		this.deadlineMicros = deadlineMicros;
+		this.batches = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * queue a message, messages which do not fit into a batch are sent
+	 * directly after the pending batch to keep the order
+	 * 
+	 * @return whether this message was queued or sent, a failure of the
+	 *         pending batch is only reported on the error output
+	 */
+	@Override
+	public boolean send(int controller, long flowKey, byte[] message, int offset, int length) {
+		boolean direct = ControlHeader.LENGTH + FRAME_OVERHEAD + length > this.capacity;
+		while (true)
+		{
+			Batch batch = getBatch(controller, flowKey, !direct);
+			if (batch == null)
+			{
+				return this.sender.send(controller, flowKey, message, offset, length);
+			}
+			synchronized (batch)
+			{
+				// a retired batch has already been replaced by a new one
+				if (batch.retired)
+				{
+					continue;
+				}
+				return direct ? batch.sendDirect(message, offset, length) : batch.add(message, offset, length);
+			}
+		}
+	}
+
+	private Batch getBatch(int controller, long flowKey, boolean create) {
+		ConcurrentMap<Long, Batch> perController = this.batches.get(controller);
+		if (perController == null)
+		{
+			if (!create)
+				return null;
+			perController = new ConcurrentHashMap<>();
+			ConcurrentMap<Long, Batch> other = this.batches.putIfAbsent(controller, perController);
+			if (other != null)
+				perController = other;
+		}
+		Batch batch = perController.get(flowKey);
+		if (batch == null && create)
+		{
+			batch = new Batch(controller, flowKey, perController);
+			Batch other = perController.putIfAbsent(flowKey, batch);
+			if (other != null)
+				batch = other;
+		}
+		return batch;
+	}
+
+	public interface FrameHandler {
+		public void onFrame(byte[] payload, int offset, int length);
+	}
+
+	/**
+	 * @return true if the payload is a batch created by a MessageBatcher
+	 */
+	public static boolean isBatch(byte[] data, int offset, int length) {
+		return ControlHeader.isBinary(data, offset, length) && ControlHeader.getType(data, offset) == ControlHeader.TYPE_BATCH;
+	}
+
+	/**
+	 * hand every frame of a batch to the handler, the frames are not copied
+	 */
+	public static void unpack(byte[] data, int offset, int length, FrameHandler handler) {
+		int end = offset + length;
+		offset += ControlHeader.LENGTH;
+		while (offset + FRAME_OVERHEAD <= end)
+		{
+			int frameLength = ControlHeader.getShort(data, offset);
+			offset += FRAME_OVERHEAD;
+			if (offset + frameLength > end)
+			{
+				System.err.println("Truncated batch frame dropped");
+				return;
+			}
+			handler.onFrame(data, offset, frameLength);
+			offset += frameLength;
+		}
+	}
+
+	private class Batch implements Runnable {
+		private int controller;
+		private long flowKey;
+		private byte[] buffer;
+		private int length;
+		private int frames;
+		private ScheduledFuture<?> deadline;
+		private ConcurrentMap<Long, Batch> owner;
+		/* removed from its map, messages have to go to a new batch */
+		private boolean retired;
+
+		Batch(int controller, long flowKey, ConcurrentMap<Long, Batch> owner) {
+			this.controller = controller;
+			this.flowKey = flowKey;
+			this.owner = owner;
+			this.buffer = new byte[capacity];
+			this.length = ControlHeader.LENGTH;
+		}
+
+		synchronized boolean add(byte[] message, int offset, int messageLength) {
+			if (this.length + FRAME_OVERHEAD + messageLength > this.buffer.length)
+			{
+				flush();
+			}
+			ControlHeader.putShort(this.buffer, this.length, messageLength);
+			System.arraycopy(message, offset, this.buffer, this.length + FRAME_OVERHEAD, messageLength);
+			this.length += FRAME_OVERHEAD + messageLength;
+			this.frames++;
+			if (this.deadline == null)
+			{
+				this.deadline = scheduler.schedule(this, deadlineMicros, TimeUnit.MICROSECONDS);
+			}
+			return true;
+		}
+
+		synchronized boolean sendDirect(byte[] message, int offset, int messageLength) {
+			flush();
+			retire();
+			return sender.send(this.controller, this.flowKey, message, offset, messageLength);
+		}
+
+		@Override
+		public synchronized void run() {
+			this.deadline = null;
+			flush();
+			retire();
+		}
+
+		private void retire() {
+			this.retired = true;
+			this.owner.remove(this.flowKey, this);
+		}
+
+		private void flush() {
+			if (this.frames == 0)
+			{
+				return;
+			}
+			if (this.deadline != null)
+			{
+				this.deadline.cancel(false);
+				this.deadline = null;
+			}
+			ControlHeader.write(this.buffer, 0, ControlHeader.TYPE_BATCH, 0, 0, this.frames, controllerId, this.controller);
+			if (!sender.send(this.controller, this.flowKey, this.buffer, 0, this.length))
+			{
+				System.err.println("Batch of " + this.frames + " messages to controller " + this.controller + " not sent");
+			}
+			this.length = ControlHeader.LENGTH;
+			this.frames = 0;
+		}
+	}
+}
@@ -0,0 +1,275 @@
+/**
+    Licensed to the Apache Software Foundation (ASF) under one
+    or more contributor license agreements.  See the NOTICE file
+    distributed with this work for additional information
+    regarding copyright ownership.  The ASF licenses this file
+    to you under the Apache License, Version 2.0 (the
+    "License"); you may not use this file except in compliance
+    with the License.  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on an
+    "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied.  See the License for the
+    specific language governing permissions and limitations
+    under the License.
+    
+    
+    @author Rhaban Hark
+**/
+
+package de.tud.kom.inband;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.tud.kom.inband.eval.EvalCollector;
+import de.tud.kom.inband.service.ControllerCommunicationService.BinaryMessageListener;
+import de.tud.kom.inband.service.ControllerCommunicationService.MessageListener;
+
+/**
+ * Hands received application messages to the registered listeners without
+ * blocking the OpenFlow I/O thread.
+ * 
+ * Every listener has its own bounded queue which is drained by at most one
+ * task of the executor at a time, so a listener sees the messages in the
+ * order they were received while a slow listener only delays itself. When a
+ * queue is full the message is either dropped or the receiving thread
+ * blocks, depending on the {@link OverflowPolicy}.
+ * 
+ * Binary listeners get a read-only view of the received bytes, the payload is
+ * only decoded into a String if String listeners are registered.
+ */
+public class MessageDispatcher {
+
+	public enum OverflowPolicy {
+		DROP, BLOCK
+	}
+
+	/* messages drained per task before the executor gets the thread back */
+	private static final int DRAIN_BATCH = 64;
+
+	/* separate maps, one object may be registered as both kinds */
+	private Map<MessageListener, ListenerQueue> stringQueues;
+	private Map<BinaryMessageListener, ListenerQueue> binaryQueues;
+	private ExecutorService executor;
+	private int capacity;
+	private OverflowPolicy policy;
+
+	public MessageDispatcher(ExecutorService executor, int capacity, OverflowPolicy policy) {
+		this.stringQueues = new ConcurrentHashMap<>();
+		this.binaryQueues = new ConcurrentHashMap<>();
+		this.executor = executor;
+		this.capacity = capacity;
+		this.policy = policy;
+	}
+
+	/**
+	 * @return an executor running each task on a new virtual thread if the
+	 *         JVM supports them, otherwise a cached pool of daemon threads
+	 */
+	public static ExecutorService defaultExecutor() {
+		try
+		{
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e)
+		{
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				private AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "inband-dispatch-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+	public void register(final MessageListener l) {
+		this.stringQueues.put(l, new ListenerQueue() {
+			@Override
+			void deliver(Delivery d) {
+				l.onMessage(d.foreignController, d.getString());
+			}
+		});
+	}
+
+	public void register(final BinaryMessageListener l) {
+		this.binaryQueues.put(l, new ListenerQueue() {
+			@Override
+			void deliver(Delivery d) {
+				l.onMessage(d.foreignController, ByteBuffer.wrap(d.data, d.offset, d.length).slice().asReadOnlyBuffer());
+			}
+		});
+	}
+
+	/**
+	 * queue a message for all listeners, the data must not be modified
+	 * afterwards
+	 */
+	public void dispatch(int foreignController, byte[] data, int offset, int length) {
+		Delivery d = new Delivery(foreignController, data, offset, length);
+		for (ListenerQueue q : this.binaryQueues.values())
+		{
+			q.enqueue(d);
+		}
+		for (ListenerQueue q : this.stringQueues.values())
+		{
+			q.enqueue(d);
+		}
+	}
+
+	public int getQueueDepth(MessageListener listener) {
+		return getQueueDepth(this.stringQueues.get(listener));
+	}
+
+	public int getQueueDepth(BinaryMessageListener listener) {
+		return getQueueDepth(this.binaryQueues.get(listener));
+	}
+
+	private static int getQueueDepth(ListenerQueue q) {
+		return q != null ? q.queue.size() : 0;
+	}
+
+	public int getMaxQueueDepth(MessageListener listener) {
+		return getMaxQueueDepth(this.stringQueues.get(listener));
+	}
+
+	public int getMaxQueueDepth(BinaryMessageListener listener) {
+		return getMaxQueueDepth(this.binaryQueues.get(listener));
+	}
+
+	private static int getMaxQueueDepth(ListenerQueue q) {
+		return q != null ? q.maxDepth.get() : 0;
+	}
+
+	public long getDropped(MessageListener listener) {
+		return getDropped(this.stringQueues.get(listener));
+	}
+
+	public long getDropped(BinaryMessageListener listener) {
+		return getDropped(this.binaryQueues.get(listener));
+	}
+
+	private static long getDropped(ListenerQueue q) {
+		return q != null ? q.dropped.get() : 0;
+	}
+
+	public void shutdown() {
+		this.executor.shutdown();
+	}
+
+	private static class Delivery {
+		final int foreignController;
+		final byte[] data;
+		final int offset;
+		final int length;
+		/* decoded once for all String listeners */
+		private volatile String string;
+
+		Delivery(int foreignController, byte[] data, int offset, int length) {
+			this.foreignController = foreignController;
+			this.data = data;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		String getString() {
+			String s = this.string;
+			if (s == null)
+			{
+				s = new String(this.data, this.offset, this.length);
+				this.string = s;
+			}
+			return s;
+		}
+	}
+
+	private abstract class ListenerQueue implements Runnable {
+		final BlockingQueue<Delivery> queue = new ArrayBlockingQueue<>(capacity);
+		final AtomicBoolean scheduled = new AtomicBoolean();
+		final AtomicInteger maxDepth = new AtomicInteger();
+		final AtomicLong dropped = new AtomicLong();
+
+		abstract void deliver(Delivery d);
+
+		void enqueue(Delivery d) {
+			if (policy == OverflowPolicy.BLOCK)
+			{
+				try
+				{
+					this.queue.put(d);
+				} catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					drop();
+					return;
+				}
+			}
+			else if (!this.queue.offer(d))
+			{
+				drop();
+				return;
+			}
+			int depth = this.queue.size();
+			int max = this.maxDepth.get();
+			while (depth > max && !this.maxDepth.compareAndSet(max, depth))
+			{
+				max = this.maxDepth.get();
+			}
+			schedule();
+		}
+
+		private void drop() {
+			this.dropped.incrementAndGet();
+			EvalCollector.get().incrementDroppedDeliveries();
+		}
+
+		private void schedule() {
+			if (this.scheduled.compareAndSet(false, true))
+			{
+				executor.execute(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			for (int i = 0; i < DRAIN_BATCH; i++)
+			{
+				Delivery d = this.queue.poll();
+				if (d == null)
+				{
+					break;
+				}
+				try
+				{
+					deliver(d);
+				} catch (RuntimeException e)
+				{
+					e.printStackTrace();
+				}
+			}
+			this.scheduled.set(false);
+			// messages queued after the last poll
+			if (!this.queue.isEmpty())
+			{
+				schedule();
+			}
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/**
+    Licensed to the Apache Software Foundation (ASF) under one
+    or more contributor license agreements.  See the NOTICE file
+    distributed with this work for additional information
+    regarding copyright ownership.  The ASF licenses this file
+    to you under the Apache License, Version 2.0 (the
+    "License"); you may not use this file except in compliance
+    with the License.  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on an
+    "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied.  See the License for the
+    specific language governing permissions and limitations
+    under the License.
+    
+    
+    @author Rhaban Hark
+**/
+
+package de.tud.kom.inband;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.tud.kom.inband.util.ControlHeader;
+
+/**
+ * Splits messages larger than the path MTU into fragments.
+ * 
+ * Every fragment starts with a {@link ControlHeader} of type
+ * {@link ControlHeader#TYPE_FRAGMENT} carrying the message id as sequence
+ * number, followed by the total message length (4 bytes), the offset of the
+ * fragment data (4 bytes), the fragment index and the fragment count (2
+ * bytes each). Payloads which fit into one packet are passed on unchanged.
+ */
+public class MessageFragmenter implements PayloadSender {
+
+	public static final int FRAGMENT_HEADER_LENGTH = ControlHeader.LENGTH + 12;
+	/* IPv4 and UDP header */
+	private static final int IP_UDP_OVERHEAD = 28;
+
+	private int controllerId;
+	private PayloadSender sender;
+	private int maxPayload;
+	private AtomicInteger nextMessageId;
+
+	public MessageFragmenter(int controllerId, PayloadSender sender, int mtu) {
+		this.controllerId = controllerId;
+		this.sender = sender;
+		this.maxPayload = mtu - IP_UDP_OVERHEAD;
+		this.nextMessageId = new AtomicInteger();
+	}
+
+	@Override
+	public boolean send(int controller, long flowKey, byte[] payload, int offset, int length) {
+		if (length <= this.maxPayload)
+		{
+			return this.sender.send(controller, flowKey, payload, offset, length);
+		}
+		int chunk = this.maxPayload - FRAGMENT_HEADER_LENGTH;
+		int count = (length + chunk - 1) / chunk;
+		if (count > 0xffff)
+		{
+			System.err.println("Message of " + length + " bytes to " + controller + " is too large");
+			return false;
+		}
+		int messageId = this.nextMessageId.incrementAndGet();
+		// the sender copies the fragment into the packet, so one buffer is enough
+		byte[] fragment = new byte[this.maxPayload];
+		boolean success = true;
+		for (int index = 0; index < count; index++)
+		{
+			int fragmentOffset = index * chunk;
+			int fragmentLength = Math.min(chunk, length - fragmentOffset);
+			ControlHeader.write(fragment, 0, ControlHeader.TYPE_FRAGMENT, 0, 0, messageId, this.controllerId, controller);
+			ControlHeader.putInt(fragment, ControlHeader.LENGTH, length);
+			ControlHeader.putInt(fragment, ControlHeader.LENGTH + 4, fragmentOffset);
+			ControlHeader.putShort(fragment, ControlHeader.LENGTH + 8, index);
+			ControlHeader.putShort(fragment, ControlHeader.LENGTH + 10, count);
+			System.arraycopy(payload, offset + fragmentOffset, fragment, FRAGMENT_HEADER_LENGTH, fragmentLength);
+			success &= this.sender.send(controller, flowKey, fragment, 0, FRAGMENT_HEADER_LENGTH + fragmentLength);
+		}
+		return success;
+	}
+
+	public static boolean isFragment(byte[] data, int offset, int length) {
+		return ControlHeader.isBinary(data, offset, length) && ControlHeader.getType(data, offset) == ControlHeader.TYPE_FRAGMENT
+				&& length >= FRAGMENT_HEADER_LENGTH;
+	}
+
+	/* the getters take the offset of the fragment in the received data */
+	public static int getMessageId(byte[] data, int offset) {
+		return ControlHeader.getSequence(data, offset);
+	}
+
+	public static int getTotalLength(byte[] data, int offset) {
+		return ControlHeader.getInt(data, offset + ControlHeader.LENGTH);
+	}
+
+	public static int getOffset(byte[] data, int offset) {
+		return ControlHeader.getInt(data, offset + ControlHeader.LENGTH + 4);
+	}
+
+	public static int getIndex(byte[] data, int offset) {
+		return ControlHeader.getShort(data, offset + ControlHeader.LENGTH + 8);
+	}
+
+	public static int getCount(byte[] data, int offset) {
+		return ControlHeader.getShort(data, offset + ControlHeader.LENGTH + 10);
+	}
+}
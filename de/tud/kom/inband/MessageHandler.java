@@ -22,8 +22,6 @@
 
 package de.tud.kom.inband;
 
-import java.util.Set;
-
 import org.projectfloodlight.openflow.protocol.OFMessage;
 import org.projectfloodlight.openflow.protocol.OFPacketIn;
 import org.projectfloodlight.openflow.protocol.OFPacketOut;
@@ -32,29 +30,51 @@ import org.projectfloodlight.openflow.types.DatapathId;
 import org.projectfloodlight.openflow.types.OFPort;
 
 import de.tud.kom.inband.eval.EvalCollector;
-import de.tud.kom.inband.service.ControllerCommunicationService.MessageListener;
+import de.tud.kom.inband.util.ControlHeader;
 import de.tud.kom.inband.util.ControlMessageParser;
 import de.tud.kom.inband.util.ControllerConnection;
+import de.tud.kom.inband.util.FlowRuleRegistry;
+import de.tud.kom.inband.util.InbandFrame;
 import de.tud.kom.inband.util.OFMessageBuilder;
 import de.tud.kom.inband.util.Port;
 import de.tud.kom.inband.util.Routing;
+import de.tud.kom.inband.util.SwitchPort;
 import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.core.internal.IOFSwitchService;
-import net.floodlightcontroller.packet.Data;
-import net.floodlightcontroller.packet.Ethernet;
-import net.floodlightcontroller.packet.IPv4;
-import net.floodlightcontroller.packet.UDP;
 
 public class MessageHandler {
 
+	private static final byte[] LEGACY_KEEP_ALIVE = "keep_alive".getBytes();
+
 	private int controllerId;
 	private ConnectionManager connectionManager;
 	private IOFSwitchService switchService;
+	private ReassemblyBuffer reassemblyBuffer;
+	private MessageDispatcher dispatcher;
+	private DiscoveryCache discoveryCache;
+	private LatencyProber latencyProber;
+	private ReliableChannel reliableChannel;
+	private RequestTracker requestTracker;
+	/* messages of reliable streams, in order */
+	private ReliableChannel.Receiver reliableReceiver = new ReliableChannel.Receiver() {
+		@Override
+		public void onMessage(int controller, byte[] data, int offset, int length) {
+			deliver(controller, data, offset, length);
+		}
+	};
 
-	public MessageHandler(int controllerId, ConnectionManager connectionManager, IOFSwitchService switchService) {
+	public MessageHandler(int controllerId, ConnectionManager connectionManager, IOFSwitchService switchService, ReassemblyBuffer reassemblyBuffer,
+			MessageDispatcher dispatcher, DiscoveryCache discoveryCache, LatencyProber latencyProber, ReliableChannel reliableChannel,
+			RequestTracker requestTracker) {
 		this.controllerId = controllerId;
 		this.connectionManager = connectionManager;
 		this.switchService = switchService;
+		this.reassemblyBuffer = reassemblyBuffer;
+		this.dispatcher = dispatcher;
+		this.discoveryCache = discoveryCache;
+		this.latencyProber = latencyProber;
+		this.reliableChannel = reliableChannel;
+		this.requestTracker = requestTracker;
 	}
 
 	/**
@@ -65,22 +85,20 @@ public class MessageHandler {
 	 *            switch where the discovery was received
 	 * @param msg
 	 *            discovery of packet-in message
-	 * @param eth
+	 * @param frame
 	 *            discovery packet
 	 */
-	public void processDiscovery(IOFSwitch inSwitch, OFMessage msg, Ethernet eth) {
+	public void processDiscovery(IOFSwitch inSwitch, OFMessage msg, InbandFrame frame) {
 		OFPort inPort = ((OFPacketIn) msg).getMatch().get(MatchField.IN_PORT);
-		IPv4 ip = (IPv4) eth.getPayload();
-		UDP udp = (UDP) ip.getPayload();
-		int sourceController = udp.getSourcePort().getPort();
-		int targetController = udp.getDestinationPort().getPort();
+		int sourceController = frame.getSourceController();
+		int targetController = frame.getTargetController();
 		
 		// use only for internal routing if its from itself
 		if (sourceController == this.controllerId)
 		{
 			System.out.println("Intra network connection from " + sourceController + " to " + this.controllerId + " (this)");
 			EvalCollector.get().incrementIntraNetworkDiscoveries();
-			Routing.addIntraNetworkLink(inSwitch, inPort, switchService.getSwitch(DatapathId.of(ip.getSourceAddress().getInt())));
+			Routing.addIntraNetworkLink(inSwitch, inPort, switchService.getSwitch(DatapathId.of(frame.getSourceAddress())));
 //			Set<Integer> connectableControllers = Routing.intermediateRouteUsingPort(connectionManager, switchService, inSwitch, inPort);
 //			if(connectableControllers.size() > 0) 
 //			{
@@ -100,12 +118,25 @@ public class MessageHandler {
 			return;
 		}
 
-		Data data = (Data) udp.getPayload();
-		String info = new String(data.getData());
-		int costs = Integer.parseInt(ControlMessageParser.getValue(info, "costs"));
+		byte[] data = frame.getData();
+		int costs = ControlMessageParser.getCosts(data, frame.getPayloadOffset(), frame.getPayloadLength());
+		int sequence = ControlMessageParser.getSequence(data, frame.getPayloadOffset(), frame.getPayloadLength());
+
+		// copies of an announcement are stored but only forwarded if strictly better
+		boolean forward = true;
+		if (sequence != 0)
+		{
+			DiscoveryCache.Verdict verdict = this.discoveryCache.offer(sourceController, sequence, new SwitchPort(inSwitch, inPort), costs);
+			if (verdict == DiscoveryCache.Verdict.DUPLICATE)
+			{
+				EvalCollector.get().incrementSuppressedDiscoveries();
+				return;
+			}
+			forward = verdict == DiscoveryCache.Verdict.FORWARD;
+		}
 
 		// store connection
-		this.connectionManager.storeAndUseConnection(sourceController, inSwitch, inPort, costs, true);
+		this.connectionManager.storeAndUseConnection(sourceController, inSwitch, inPort, costs, forward, sequence);
 	}
 
 	/**
@@ -118,17 +149,14 @@ public class MessageHandler {
 	 *            where the activation message was received at
 	 * @param msg
 	 *            activation of packet-in message
-	 * @param eth
+	 * @param frame
 	 *            activation message
 	 */
-	public void processActivation(IOFSwitch inSwitch, OFMessage msg, Ethernet eth) {
-		OFPort inPort = ((OFPacketIn) msg).getMatch().get(MatchField.IN_PORT);
-		IPv4 ip = (IPv4) eth.getPayload();
-		UDP udp = (UDP) ip.getPayload();
-		int sourceController = udp.getSourcePort().getPort();
-		int targetController = udp.getDestinationPort().getPort();
-		String data = new String(((Data) udp.getPayload()).getData());
-		int costs = Integer.parseInt(ControlMessageParser.getValue(data, "costs"));
+	public void processActivation(final IOFSwitch inSwitch, OFMessage msg, InbandFrame frame) {
+		final OFPort inPort = ((OFPacketIn) msg).getMatch().get(MatchField.IN_PORT);
+		final int sourceController = frame.getSourceController();
+		final int targetController = frame.getTargetController();
+		final int costs = ControlMessageParser.getCosts(frame.getData(), frame.getPayloadOffset(), frame.getPayloadLength());
 
 		// install rule at ingress switch if destination is current controller
 		if (targetController == this.controllerId)
@@ -145,31 +173,166 @@ public class MessageHandler {
 		// else forward activation and install path
 		else
 		{
-			ControllerConnection connectionTo = this.connectionManager.getConnectionTo(targetController);
-			Port edge = Routing.installRulesBetween(sourceController, inSwitch, inPort, targetController, connectionTo.getSwitch(), connectionTo.getPort());
-			if (edge != null)
+			final ControllerConnection connectionTo = this.connectionManager.getConnectionTo(targetController);
+			if (connectionTo == null)
+			{
+				return;
+			}
+			// next best connection as switch-side backup
+			ControllerConnection next = null;
+			if (Routing.installsBackupPaths())
+			{
+				for (ControllerConnection c : this.connectionManager.getAllConnectionsTo(targetController))
+				{
+					if (c != connectionTo)
+					{
+						next = c;
+						break;
+					}
+				}
+			}
+			final ControllerConnection backup = next;
+			// forward the activation at the end of the path once all its rules are in place, also
+			// over the backup so the domains behind it install the rules for this source as well
+			Port path = Routing.installRulesBetween(sourceController, inSwitch, inPort, targetController, connectionTo.getSwitch(), connectionTo.getPort(),
+					backup != null ? backup.getSwitch() : null, backup != null ? backup.getPort() : null, new Runnable() {
+						@Override
+						public void run() {
+							forwardActivation(sourceController, targetController, costs, inSwitch, inPort, connectionTo);
+							if (backup != null)
+							{
+								forwardActivation(sourceController, targetController, costs, inSwitch, inPort, backup);
+							}
+						}
+					});
+			if (path == null)
 			{
-				byte[] activatePacket = OFMessageBuilder.activatePacket(sourceController, targetController, costs);
-				OFPacketOut pckOut = OFMessageBuilder.packetOut(edge.getSwitch_(), edge.getPort(), activatePacket);
-				edge.getSwitch_().write(pckOut);
-				EvalCollector.get().incrementActivationMessageCounter();
-				System.out.println("Activate path from " + sourceController + " to " + targetController + " at " + inSwitch.getId().getLong() + ":"
-						+ inPort + " --> " + edge.getSwitch_().getId().getLong() + ":" + edge.getPort().getPortNumber() + " and install path.");
+				System.out.println("No path from " + inSwitch.getId().getLong() + ":" + inPort + " to controller " + targetController);
 			}
 		}
 	}
 
-	public void processCommunicationMessage(Ethernet eth, Set<MessageListener> listeners) {
-		IPv4 ip = (IPv4) eth.getPayload();
-		UDP udp = (UDP) ip.getPayload();
-		int foreignController = udp.getSourcePort().getPort();
+	private void forwardActivation(int sourceController, int targetController, int costs, IOFSwitch inSwitch, OFPort inPort,
+			ControllerConnection connection) {
+		byte[] activatePacket = OFMessageBuilder.activatePacket(sourceController, targetController, costs);
+		OFPacketOut pckOut = OFMessageBuilder.packetOut(connection.getSwitch(), connection.getPort(), activatePacket);
+		connection.getSwitch().write(pckOut);
+		EvalCollector.get().incrementActivationMessageCounter();
+		System.out.println("Activate path from " + sourceController + " to " + targetController + " at " + inSwitch.getId().getLong() + ":" + inPort
+				+ " --> " + connection.getSwitch().getId().getLong() + ":" + connection.getPort().getPortNumber() + " and install path.");
+	}
 
-		Data data = (Data) udp.getPayload();
-		String msg = new String(data.getData());
-		for (MessageListener l : listeners)
+	/**
+	 * process a controller message sent to this controller by a switch,
+	 * either because it reached its last hop or because the rule which
+	 * would have forwarded it has expired. Expired rules are reinstalled and
+	 * messages for other controllers are forwarded along their path.
+	 */
+	public void processCommunicationMessage(IOFSwitch inSwitch, OFMessage msg, InbandFrame frame) {
+		OFPort inPort = ((OFPacketIn) msg).getMatch().get(MatchField.IN_PORT);
+		final int foreignController = frame.getSourceController();
+		int targetController = frame.getTargetController();
+
+		OFPort outPort = FlowRuleRegistry.get().reinstall(inSwitch, inPort, foreignController, targetController);
+		if (targetController != this.controllerId)
+		{
+			if (outPort != null && outPort.compareTo(OFPort.CONTROLLER) != 0)
+			{
+				inSwitch.write(OFMessageBuilder.packetOut(inSwitch, outPort, frame.getData()));
+			}
+			return;
+		}
+
+		// the payload is read in place, it is not copied out of the packet
+		byte[] data = frame.getData();
+		int offset = frame.getPayloadOffset();
+		int length = frame.getPayloadLength();
+		// only refreshes the rules along the path
+		if (isKeepAlive(data, offset, length))
+		{
+			return;
+		}
+		// round-trip time measurement
+		if (LatencyProber.isProbe(data, offset, length))
+		{
+			ControllerConnection back = this.connectionManager.selectConnection(foreignController, ConnectionManager.NO_FLOW_KEY);
+			if (back != null)
+			{
+				byte[] reply = LatencyProber.reply(data, offset, length, this.controllerId);
+				byte[] packet = OFMessageBuilder.controllerMessage(this.controllerId, foreignController, reply, 0, reply.length);
+				back.getSwitch().write(OFMessageBuilder.packetOut(back.getSwitch(), back.getPort(), packet));
+			}
+			return;
+		}
+		if (LatencyProber.isProbeReply(data, offset, length))
+		{
+			if (this.latencyProber != null)
+			{
+				this.latencyProber.onReply(foreignController, data, offset, length);
+			}
+			return;
+		}
+		// several messages coalesced by the MessageBatcher of the sender
+		if (MessageBatcher.isBatch(data, offset, length))
+		{
+			MessageBatcher.unpack(data, offset, length, new MessageBatcher.FrameHandler() {
+				@Override
+				public void onFrame(byte[] frameData, int frameOffset, int frameLength) {
+					deliver(foreignController, frameData, frameOffset, frameLength);
+				}
+			});
+			return;
+		}
+		// part of a message larger than the path MTU
+		if (MessageFragmenter.isFragment(data, offset, length))
+		{
+			byte[] message = this.reassemblyBuffer.add(foreignController, data, offset, length);
+			if (message != null)
+			{
+				deliver(foreignController, message, 0, message.length);
+			}
+			return;
+		}
+		deliver(foreignController, data, offset, length);
+	}
+
+	private static boolean isKeepAlive(byte[] data, int offset, int length) {
+		if (ControlHeader.isBinary(data, offset, length))
+		{
+			return ControlHeader.getType(data, offset) == ControlHeader.TYPE_KEEPALIVE;
+		}
+		// sent as text by older controllers
+		if (length != LEGACY_KEEP_ALIVE.length)
+		{
+			return false;
+		}
+		for (int i = 0; i < length; i++)
+		{
+			if (data[offset + i] != LEGACY_KEEP_ALIVE[i])
+				return false;
+		}
+		return true;
+	}
+
+	private void deliver(int foreignController, byte[] data, int offset, int length) {
+		// numbered message or ack, messages come back in order through the receiver
+		if (ReliableChannel.isReliable(data, offset, length))
+		{
+			this.reliableChannel.receive(foreignController, data, offset, length, this.reliableReceiver);
+			return;
+		}
+		if (RequestTracker.isRequestOrResponse(data, offset, length))
+		{
+			this.requestTracker.receive(foreignController, data, offset, length);
+			return;
+		}
+		// strip the header the sender put in front of a header-like message
+		if (ControlHeader.isBinary(data, offset, length) && ControlHeader.getType(data, offset) == ControlHeader.TYPE_DATA)
 		{
-			l.onMessage(foreignController, msg);
+			offset += ControlHeader.LENGTH;
+			length -= ControlHeader.LENGTH;
 		}
+		this.dispatcher.dispatch(foreignController, data, offset, length);
 	}
 
 }
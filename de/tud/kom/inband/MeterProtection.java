@@ -0,0 +1,222 @@
+/**
+    Licensed to the Apache Software Foundation (ASF) under one
+    or more contributor license agreements.  See the NOTICE file
+    distributed with this work for additional information
+    regarding copyright ownership.  The ASF licenses this file
+    to you under the Apache License, Version 2.0 (the
+    "License"); you may not use this file except in compliance
+    with the License.  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on an
+    "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied.  See the License for the
+    specific language governing permissions and limitations
+    under the License.
+    
+    
+    @author Rhaban Hark
+**/
+
+
+package de.tud.kom.inband;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.projectfloodlight.openflow.protocol.OFMeterBandStats;
+import org.projectfloodlight.openflow.protocol.OFMeterFeatures;
+import org.projectfloodlight.openflow.protocol.OFMeterFeaturesStatsReply;
+import org.projectfloodlight.openflow.protocol.OFMeterStats;
+import org.projectfloodlight.openflow.protocol.OFMeterStatsReply;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import de.tud.kom.inband.eval.EvalCollector;
+import de.tud.kom.inband.util.OFMessageBuilder;
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * Limits discoveries and activations sent to the controller with one meter
+ * each per switch, so a discovery storm is dropped at the switch before it
+ * reaches the packet-in channel. The drop counters of the meters are polled
+ * periodically.
+ * 
+ * Every switch gets the unmetered discovery rule first. The meters and the
+ * metered rules replacing it are only installed once the meter features of
+ * the switch show enough meters with drop bands; many OpenFlow 1.3 switches
+ * report none and would reject rules referring to a meter.
+ */
+public class MeterProtection {
+
+	private static final long ALL_METERS = 0xffffffffL;
+	/* bit of OFPMBT_DROP in the band types of the meter features */
+	private static final long BAND_TYPE_DROP = 1 << 1;
+
+	/* the answer to the features request only writes a few messages */
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private long rate;
+	private long burst;
+	private long statsIntervalMillis;
+	private Map<Long, IOFSwitch> metered;
+	/* band packet counts per switch and meter at the last poll */
+	private Map<Long, long[]> lastDropped;
+	private AtomicLong droppedDiscoveries;
+	private AtomicLong droppedActivations;
+	private ScheduledExecutorService executor;
+
+	/**
+	 * @param rate
+	 *            packets per second sent to the controller per switch and
+	 *            meter
+	 * @param burst
+	 *            packets allowed above the rate
+	 * @param statsIntervalMillis
+	 *            between polls of the drop counters
+	 */
+	public MeterProtection(long rate, long burst, long statsIntervalMillis) {
+		this.rate = rate;
+		this.burst = burst;
+		this.statsIntervalMillis = statsIntervalMillis;
+		this.metered = new ConcurrentHashMap<>();
+		this.lastDropped = new ConcurrentHashMap<>();
+		this.droppedDiscoveries = new AtomicLong();
+		this.droppedActivations = new AtomicLong();
+	}
+
+	/**
+	 * install the unmetered discovery rule, then ask the switch for its meter
+	 * features and replace it by the metered rules if meters are supported
+	 */
+	public void install(final IOFSwitch sw) {
+		sw.write(OFMessageBuilder.flowModDiscovery(sw));
+		if (!OFMessageBuilder.supportsMeters(sw))
+		{
+			return;
+		}
+		final ListenableFuture<List<OFMeterFeaturesStatsReply>> future = sw
+				.writeStatsRequest(sw.getOFFactory().buildMeterFeaturesStatsRequest().build());
+		future.addListener(new Runnable() {
+			@Override
+			public void run() {
+				try
+				{
+					for (OFMeterFeaturesStatsReply reply : future.get())
+					{
+						OFMeterFeatures features = reply.getFeatures();
+						if (features.getMaxMeter() >= 2 && (features.getBandTypes() & BAND_TYPE_DROP) != 0)
+						{
+							installMeters(sw);
+							return;
+						}
+					}
+					System.out.println("No meter support at " + sw.getId().getLong() + ", discoveries are not metered");
+				} catch (InterruptedException | ExecutionException e)
+				{
+					System.err.println("No meter features from " + sw.getId().getLong() + ", discoveries are not metered: " + e);
+				}
+			}
+		}, DIRECT);
+	}
+
+	private void installMeters(IOFSwitch sw) {
+		// drop meters left from an earlier connection before adding them again
+		sw.write(OFMessageBuilder.meterDelete(sw, OFMessageBuilder.DISCOVERY_METER_ID));
+		sw.write(OFMessageBuilder.meterDelete(sw, OFMessageBuilder.ACTIVATION_METER_ID));
+		sw.write(OFMessageBuilder.meterAdd(sw, OFMessageBuilder.DISCOVERY_METER_ID, this.rate, this.burst));
+		sw.write(OFMessageBuilder.meterAdd(sw, OFMessageBuilder.ACTIVATION_METER_ID, this.rate, this.burst));
+		sw.write(OFMessageBuilder.flowModDiscovery(sw, OFMessageBuilder.DISCOVERY_METER_ID));
+		sw.write(OFMessageBuilder.flowModActivation(sw, OFMessageBuilder.ACTIVATION_METER_ID));
+		this.lastDropped.put(sw.getId().getLong(), new long[2]);
+		this.metered.put(sw.getId().getLong(), sw);
+	}
+
+	public void switchRemoved(long dpid) {
+		this.metered.remove(dpid);
+		this.lastDropped.remove(dpid);
+	}
+
+	public void start(ScheduledExecutorService executor) {
+		this.executor = executor;
+		executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				poll();
+			}
+		}, this.statsIntervalMillis, this.statsIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void poll() {
+		for (final IOFSwitch sw : this.metered.values())
+		{
+			final ListenableFuture<List<OFMeterStatsReply>> future = sw
+					.writeStatsRequest(sw.getOFFactory().buildMeterStatsRequest().setMeterId(ALL_METERS).build());
+			future.addListener(new Runnable() {
+				@Override
+				public void run() {
+					try
+					{
+						update(sw.getId().getLong(), future.get());
+					} catch (InterruptedException | ExecutionException e)
+					{
+						System.err.println("No meter stats from " + sw.getId().getLong() + ": " + e);
+					}
+				}
+			}, this.executor);
+		}
+	}
+
+	private void update(long dpid, List<OFMeterStatsReply> replies) {
+		long[] last = this.lastDropped.get(dpid);
+		if (last == null)
+		{
+			return;
+		}
+		for (OFMeterStatsReply reply : replies)
+		{
+			for (OFMeterStats stats : reply.getEntries())
+			{
+				int index;
+				if (stats.getMeterId() == OFMessageBuilder.DISCOVERY_METER_ID)
+					index = 0;
+				else if (stats.getMeterId() == OFMessageBuilder.ACTIVATION_METER_ID)
+					index = 1;
+				else
+					continue;
+				long dropped = 0;
+				for (OFMeterBandStats band : stats.getBandStats())
+				{
+					dropped += band.getPacketBandCount().getValue();
+				}
+				long delta = dropped - last[index];
+				last[index] = dropped;
+				if (delta <= 0)
+					continue;
+				(index == 0 ? this.droppedDiscoveries : this.droppedActivations).addAndGet(delta);
+				EvalCollector.get().addMeterDrops(delta);
+			}
+		}
+	}
+
+	public long getDroppedDiscoveries() {
+		return this.droppedDiscoveries.get();
+	}
+
+	public long getDroppedActivations() {
+		return this.droppedActivations.get();
+	}
+}
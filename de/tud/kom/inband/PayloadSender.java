@@ -0,0 +1,34 @@
+/**
+    Licensed to the Apache Software Foundation (ASF) under one
+    or more contributor license agreements.  See the NOTICE file
+    distributed with this work for additional information
+    regarding copyright ownership.  The ASF licenses this file
+    to you under the Apache License, Version 2.0 (the
+    "License"); you may not use this file except in compliance
+    with the License.  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on an
+    "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied.  See the License for the
+    specific language governing permissions and limitations
+    under the License.
+    
+    
+    @author Rhaban Hark
+**/
+
+package de.tud.kom.inband;
+
+/**
+ * Next stage of the in-band send path, receives the UDP payload for a
+ * foreign controller. The payload may be reused by the caller once send
+ * returns. Payloads with the same flow key (see
+ * {@link ConnectionManager#selectConnection(int, long)}) must keep their
+ * order.
+ */
+public interface PayloadSender {
+	public boolean send(int controller, long flowKey, byte[] payload, int offset, int length);
+}
@@ -0,0 +1,261 @@
+/**
+    Licensed to the Apache Software Foundation (ASF) under one
+    or more contributor license agreements.  See the NOTICE file
+    distributed with this work for additional information
+    regarding copyright ownership.  The ASF licenses this file
+    to you under the Apache License, Version 2.0 (the
+    "License"); you may not use this file except in compliance
+    with the License.  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on an
+    "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied.  See the License for the
+    specific language governing permissions and limitations
+    under the License.
+    
+    
+    @author Rhaban Hark
+**/
+
+package de.tud.kom.inband;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.projectfloodlight.openflow.protocol.OFPortDesc;
+import org.projectfloodlight.openflow.protocol.OFPortStatsEntry;
+import org.projectfloodlight.openflow.protocol.OFPortStatsReply;
+import org.projectfloodlight.openflow.protocol.OFVersion;
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.OFPort;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import de.tud.kom.inband.eval.EvalCollector;
+import de.tud.kom.inband.util.Port;
+import de.tud.kom.inband.util.PortLoad;
+import de.tud.kom.inband.util.Routing;
+import de.tud.kom.inband.util.SwitchPort;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.internal.IOFSwitchService;
+
+/**
+ * Polls the port statistics of all ports carrying in-band traffic (egress
+ * ports of connections and links between own switches) and turns
+ * utilization and drops into extra costs. Links above half their capacity or
+ * dropping packets become more expensive, so path costs and the ranking of
+ * connections move traffic away from them.
+ * 
+ * The poll interval is halved while ports are congested or their load
+ * changes and doubled while everything is quiet.
+ */
+public class PortLoadMonitor {
+
+	/* utilization below which a port costs nothing extra */
+	private static final double UTILIZATION_THRESHOLD = 0.5;
+	/* drop rate at which a port gets the full extra costs */
+	private static final double FULL_DROP_RATE = 0.1;
+
+	private static final class Counters {
+		long txBytes;
+		long txPackets;
+		long dropped;
+		long time;
+	}
+
+	private ConnectionManager cm;
+	private IOFSwitchService switchService;
+	private int maxLoadCosts;
+	private long defaultSpeedKbps;
+	private long minIntervalMillis;
+	private long maxIntervalMillis;
+	private volatile long intervalMillis;
+	/* set when a port was congested or its costs changed since the last poll */
+	private volatile boolean busy;
+	private Map<SwitchPort, Counters> last;
+	private ScheduledExecutorService executor;
+
+	/**
+	 * @param maxLoadCosts
+	 *            extra costs of a fully congested port
+	 * @param defaultSpeedMbps
+	 *            used for ports not reporting their speed
+	 * @param minIntervalMillis
+	 *            between polls while ports are congested
+	 * @param maxIntervalMillis
+	 *            between polls while all ports are quiet
+	 */
+	public PortLoadMonitor(ConnectionManager cm, IOFSwitchService switchService, int maxLoadCosts, int defaultSpeedMbps,
+			long minIntervalMillis, long maxIntervalMillis) {
+		this.cm = cm;
+		this.switchService = switchService;
+		this.maxLoadCosts = maxLoadCosts;
+		this.defaultSpeedKbps = defaultSpeedMbps * 1000L;
+		this.minIntervalMillis = minIntervalMillis;
+		this.maxIntervalMillis = Math.max(minIntervalMillis, maxIntervalMillis);
+		this.intervalMillis = this.maxIntervalMillis;
+		this.last = new ConcurrentHashMap<>();
+	}
+
+	public void start(ScheduledExecutorService executor) {
+		this.executor = executor;
+		schedule();
+	}
+
+	public void switchRemoved(long dpid) {
+		for (SwitchPort key : this.last.keySet())
+		{
+			if (key.getDpid() == dpid)
+			{
+				this.last.remove(key);
+				if (PortLoad.setPenalty(key, 0))
+					this.cm.updateLoad(key, 0);
+			}
+		}
+	}
+
+	private void schedule() {
+		this.executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				try
+				{
+					poll();
+				} finally
+				{
+					schedule();
+				}
+			}
+		}, this.intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void poll() {
+		// adapt to the results of the previous poll
+		this.intervalMillis = this.busy ? Math.max(this.minIntervalMillis, this.intervalMillis / 2)
+				: Math.min(this.maxIntervalMillis, this.intervalMillis * 2);
+		this.busy = false;
+
+		Map<Long, Set<OFPort>> watched = new HashMap<>();
+		for (SwitchPort key : this.cm.getConnectionPorts())
+		{
+			watch(watched, key.getDpid(), key.getPort());
+		}
+		for (Map.Entry<Long, Set<Port>> links : Routing.getIntraNetworkLinks().entrySet())
+		{
+			for (Port link : links.getValue())
+			{
+				watch(watched, links.getKey(), link.getPort());
+			}
+		}
+
+		for (final Map.Entry<Long, Set<OFPort>> entry : watched.entrySet())
+		{
+			final IOFSwitch sw = this.switchService.getSwitch(DatapathId.of(entry.getKey()));
+			if (sw == null)
+				continue;
+			final ListenableFuture<List<OFPortStatsReply>> future = sw
+					.writeStatsRequest(sw.getOFFactory().buildPortStatsRequest().setPortNo(OFPort.ANY).build());
+			future.addListener(new Runnable() {
+				@Override
+				public void run() {
+					try
+					{
+						update(sw, entry.getValue(), future.get());
+					} catch (InterruptedException | ExecutionException e)
+					{
+						System.err.println("No port stats from " + sw.getId().getLong() + ": " + e);
+					}
+				}
+			}, this.executor);
+		}
+	}
+
+	private static void watch(Map<Long, Set<OFPort>> watched, long dpid, OFPort port) {
+		Set<OFPort> ports = watched.get(dpid);
+		if (ports == null)
+		{
+			ports = new HashSet<>();
+			watched.put(dpid, ports);
+		}
+		ports.add(port);
+	}
+
+	private void update(IOFSwitch sw, Set<OFPort> ports, List<OFPortStatsReply> replies) {
+		long now = System.currentTimeMillis();
+		for (OFPortStatsReply reply : replies)
+		{
+			for (OFPortStatsEntry stats : reply.getEntries())
+			{
+				if (!ports.contains(stats.getPortNo()))
+					continue;
+				SwitchPort key = new SwitchPort(sw, stats.getPortNo());
+				Counters current = new Counters();
+				current.txBytes = stats.getTxBytes().getValue();
+				current.txPackets = stats.getTxPackets().getValue();
+				current.dropped = stats.getTxDropped().getValue() + stats.getRxDropped().getValue();
+				current.time = now;
+				Counters previous = this.last.put(key, current);
+				if (previous == null)
+					continue;
+
+				long bytes = current.txBytes - previous.txBytes;
+				long packets = current.txPackets - previous.txPackets;
+				long dropped = current.dropped - previous.dropped;
+				long millis = current.time - previous.time;
+				// counters were reset, start over with the current values
+				if (bytes < 0 || packets < 0 || dropped < 0 || millis <= 0)
+					continue;
+
+				long speedKbps = speedKbps(sw, stats.getPortNo());
+				// bits per millisecond equal kbit per second
+				double utilization = bytes * 8.0 / millis / speedKbps;
+				double dropRate = dropped / (double) Math.max(1, packets + dropped);
+				double congestion = Math.max(clamp((utilization - UTILIZATION_THRESHOLD) / (1 - UTILIZATION_THRESHOLD)),
+						clamp(dropRate / FULL_DROP_RATE));
+
+				int penalty = (int) Math.round(this.maxLoadCosts * congestion);
+				if (penalty > 0)
+					this.busy = true;
+				if (PortLoad.setPenalty(key, penalty))
+				{
+					this.busy = true;
+					EvalCollector.get().incrementLoadChanges();
+					System.out.println("Load costs of " + key.getDpid() + ":" + key.getPort().getPortNumber() + " are now " + penalty
+							+ " (utilization=" + Math.round(utilization * 100) + "%, drops=" + Math.round(dropRate * 100) + "%)");
+					this.cm.updateLoad(key, penalty);
+				}
+			}
+		}
+	}
+
+	/*
+	 * current speed of the port, the default speed if the switch does not
+	 * report it (OpenFlow 1.0 port descriptions have no such field)
+	 */
+	private long speedKbps(IOFSwitch sw, OFPort port) {
+		if (sw.getOFFactory().getVersion() == OFVersion.OF_10)
+			return this.defaultSpeedKbps;
+		OFPortDesc desc = sw.getPort(port);
+		try
+		{
+			return desc != null && desc.getCurrSpeed() > 0 ? desc.getCurrSpeed() : this.defaultSpeedKbps;
+		} catch (UnsupportedOperationException e)
+		{
+			return this.defaultSpeedKbps;
+		}
+	}
+
+	private static double clamp(double value) {
+		return Math.max(0, Math.min(1, value));
+	}
+}
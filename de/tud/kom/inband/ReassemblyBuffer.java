@@ -0,0 +1,147 @@
+/**
+    Licensed to the Apache Software Foundation (ASF) under one
+    or more contributor license agreements.  See the NOTICE file
+    distributed with this work for additional information
+    regarding copyright ownership.  The ASF licenses this file
+    to you under the Apache License, Version 2.0 (the
+    "License"); you may not use this file except in compliance
+    with the License.  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on an
+    "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied.  See the License for the
+    specific language governing permissions and limitations
+    under the License.
+    
+    
+    @author Rhaban Hark
+**/
+
+package de.tud.kom.inband;
+
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reassembles fragmented messages keyed by (source controller, message id).
+ * 
+ * The message buffer is allocated with the first fragment and every fragment
+ * is copied exactly once, directly to its final position. The buffer is
+ * bounded in the number of pending messages and their total size; incomplete
+ * messages are dropped after a timeout or when space is needed.
+ */
+public class ReassemblyBuffer {
+
+	private static class Pending {
+		final byte[] data;
+		final BitSet received;
+		final int count;
+		final long created;
+
+		Pending(int length, int count, long created) {
+			this.data = new byte[length];
+			this.received = new BitSet(count);
+			this.count = count;
+			this.created = created;
+		}
+	}
+
+	private int maxMessages;
+	private int maxBytes;
+	private long timeoutMillis;
+	private int pendingBytes;
+	/* insertion order is age order */
+	private LinkedHashMap<Long, Pending> pending;
+
+	public ReassemblyBuffer(int maxMessages, int maxBytes, long timeoutMillis) {
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+		this.timeoutMillis = timeoutMillis;
+		this.pending = new LinkedHashMap<>();
+	}
+
+	/**
+	 * @return the complete message once its last missing fragment arrived,
+	 *         null otherwise
+	 */
+	public synchronized byte[] add(int sourceController, byte[] fragment, int fragmentOffset, int fragmentLength) {
+		long now = System.currentTimeMillis();
+		evictExpired(now);
+
+		int totalLength = MessageFragmenter.getTotalLength(fragment, fragmentOffset);
+		int offset = MessageFragmenter.getOffset(fragment, fragmentOffset);
+		int index = MessageFragmenter.getIndex(fragment, fragmentOffset);
+		int count = MessageFragmenter.getCount(fragment, fragmentOffset);
+		int length = fragmentLength - MessageFragmenter.FRAGMENT_HEADER_LENGTH;
+		if (totalLength <= 0 || totalLength > this.maxBytes || offset < 0 || offset + length > totalLength || index >= count)
+		{
+			System.err.println("Invalid fragment from " + sourceController + " dropped");
+			return null;
+		}
+
+		long key = (long) sourceController << 32 | (MessageFragmenter.getMessageId(fragment, fragmentOffset) & 0xffffffffL);
+		Pending message = this.pending.get(key);
+		if (message == null)
+		{
+			makeRoom(totalLength);
+			message = new Pending(totalLength, count, now);
+			this.pending.put(key, message);
+			this.pendingBytes += totalLength;
+		}
+		else if (message.data.length != totalLength || message.count != count)
+		{
+			System.err.println("Inconsistent fragment from " + sourceController + " dropped");
+			return null;
+		}
+		if (message.received.get(index))
+		{
+			return null;
+		}
+		System.arraycopy(fragment, fragmentOffset + MessageFragmenter.FRAGMENT_HEADER_LENGTH, message.data, offset, length);
+		message.received.set(index);
+		if (message.received.cardinality() < message.count)
+		{
+			return null;
+		}
+		remove(key);
+		return message.data;
+	}
+
+	private void evictExpired(long now) {
+		for (Iterator<Map.Entry<Long, Pending>> i = this.pending.entrySet().iterator(); i.hasNext();)
+		{
+			Pending message = i.next().getValue();
+			if (now - message.created < this.timeoutMillis)
+			{
+				break;
+			}
+			i.remove();
+			this.pendingBytes -= message.data.length;
+		}
+	}
+
+	/* drop the oldest messages until the new one fits */
+	private void makeRoom(int length) {
+		Iterator<Map.Entry<Long, Pending>> i = this.pending.entrySet().iterator();
+		while (i.hasNext() && (this.pending.size() >= this.maxMessages || this.pendingBytes + length > this.maxBytes))
+		{
+			Pending message = i.next().getValue();
+			i.remove();
+			this.pendingBytes -= message.data.length;
+			System.err.println("Incomplete message of " + message.data.length + " bytes dropped");
+		}
+	}
+
+	private void remove(long key) {
+		Pending message = this.pending.remove(key);
+		if (message != null)
+		{
+			this.pendingBytes -= message.data.length;
+		}
+	}
+}
@@ -0,0 +1,584 @@
+/**
+    Licensed to the Apache Software Foundation (ASF) under one
+    or more contributor license agreements.  See the NOTICE file
+    distributed with this work for additional information
+    regarding copyright ownership.  The ASF licenses this file
+    to you under the Apache License, Version 2.0 (the
+    "License"); you may not use this file except in compliance
+    with the License.  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on an
+    "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied.  See the License for the
+    specific language governing permissions and limitations
+    under the License.
+    
+    
+    @author Rhaban Hark
+**/
+package de.tud.kom.inband;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import de.tud.kom.inband.eval.EvalCollector;
+import de.tud.kom.inband.util.ControlHeader;
+
+/**
+ * Reliable, ordered delivery of messages to foreign controllers on top of the
+ * unreliable in-band send path.
+ * 
+ * Every peer gets one stream per direction. Messages are numbered, kept until
+ * they are acknowledged and retransmitted when the retransmission timeout
+ * (smoothed round-trip time plus four deviations, doubled on every timeout)
+ * expires or when selective acks show a hole. At most window messages are in
+ * flight, further ones are queued. The receiver buffers messages arriving out
+ * of order and hands them on in sequence.
+ * 
+ * A reliable frame starts with a {@link ControlHeader} of type
+ * {@link ControlHeader#TYPE_RELIABLE} carrying the stream epoch as costs and
+ * the message number as sequence number, followed by the cumulative ack (next
+ * expected number of the reverse stream, 4 bytes), the epoch of the reverse
+ * stream it refers to (4 bytes), the oldest unacknowledged number of this
+ * stream (4 bytes), the number of selective ack blocks (2 bytes) and the
+ * blocks (first and last number + 1, 4 bytes each), then the message. Acks
+ * ride along on every reliable frame; without reverse traffic a frame of type
+ * {@link ControlHeader#TYPE_ACK} without message is sent after a short delay.
+ * 
+ * A stream gets a new random epoch when the channel starts and when a message
+ * is not acknowledged after the maximum number of transmissions. The receiver
+ * starts over with the oldest unacknowledged number of an unknown epoch.
+ */
+public class ReliableChannel {
+
+	public static final int RELIABLE_HEADER_LENGTH = ControlHeader.LENGTH + 14;
+	/* set if the ack fields are valid */
+	private static final int FLAG_ACK = 1;
+	private static final int OFFSET_ACK = ControlHeader.LENGTH;
+	private static final int OFFSET_ACK_EPOCH = ControlHeader.LENGTH + 4;
+	private static final int OFFSET_BASE = ControlHeader.LENGTH + 8;
+	private static final int OFFSET_SACK_COUNT = ControlHeader.LENGTH + 12;
+	private static final int SACK_BLOCK_LENGTH = 8;
+	private static final int MAX_SACK_BLOCKS = 4;
+	private static final int MAX_TRANSMISSIONS = 12;
+	private static final long INITIAL_RTO_MILLIS = 1000;
+	private static final long MAX_RTO_MILLIS = 30000;
+
+	public interface Receiver {
+		/**
+		 * called in order for every message of a stream, the data must not be
+		 * modified
+		 */
+		public void onMessage(int controller, byte[] data, int offset, int length);
+	}
+
+	private int controllerId;
+	private PayloadSender sender;
+	private ScheduledExecutorService scheduler;
+	private int window;
+	private int maxQueued;
+	private long minRtoMillis;
+	private long ackDelayMillis;
+	/* peers messages are sent reliably to by default, null for all */
+	private Set<Integer> reliablePeers;
+	private ConcurrentMap<Integer, Peer> peers;
+
+	/**
+	 * @param window
+	 *            messages in flight per peer, rounded up to a power of two
+	 * @param maxQueued
+	 *            messages waiting for the window per peer
+	 * @param reliablePeers
+	 *            peers all messages are sent to reliably, null for all
+	 */
+	public ReliableChannel(int controllerId, PayloadSender sender, ScheduledExecutorService scheduler, int window, int maxQueued,
+			long minRtoMillis, long ackDelayMillis, Set<Integer> reliablePeers) {
+		this.controllerId = controllerId;
+		this.sender = sender;
+		this.scheduler = scheduler;
+		// a power of two, so slots stay consistent when the numbers wrap around
+		this.window = Integer.highestOneBit(Math.max(1, window - 1)) << 1;
+		this.maxQueued = maxQueued;
+		this.minRtoMillis = minRtoMillis;
+		this.ackDelayMillis = ackDelayMillis;
+		this.reliablePeers = reliablePeers;
+		this.peers = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * @return true if plain messages to the controller are sent reliably
+	 */
+	public boolean isReliable(int controller) {
+		return this.reliablePeers == null || this.reliablePeers.contains(controller);
+	}
+
+	/**
+	 * Number the message and send it as soon as the window allows. The
+	 * payload is copied.
+	 * 
+	 * @return completed once the peer acknowledged the message, failed if the
+	 *         queue is full or the peer did not acknowledge it in time
+	 */
+	public CompletableFuture<Void> send(int controller, long flowKey, byte[] payload, int offset, int length) {
+		return getPeer(controller).send(flowKey, Arrays.copyOfRange(payload, offset, offset + length));
+	}
+
+	/**
+	 * @return true if the payload is a reliable frame or an ack
+	 */
+	public static boolean isReliable(byte[] data, int offset, int length) {
+		if (!ControlHeader.isBinary(data, offset, length) || length < RELIABLE_HEADER_LENGTH)
+			return false;
+		byte type = ControlHeader.getType(data, offset);
+		return type == ControlHeader.TYPE_RELIABLE || type == ControlHeader.TYPE_ACK;
+	}
+
+	/**
+	 * process a reliable frame or an ack, messages which are next in sequence
+	 * are handed to the receiver right away
+	 */
+	public void receive(int controller, byte[] data, int offset, int length, Receiver receiver) {
+		getPeer(controller).receive(data, offset, length, receiver);
+	}
+
+	private Peer getPeer(int controller) {
+		Peer peer = this.peers.get(controller);
+		if (peer == null)
+		{
+			peer = new Peer(controller);
+			Peer other = this.peers.putIfAbsent(controller, peer);
+			if (other != null)
+				peer = other;
+		}
+		return peer;
+	}
+
+	private static final class Segment {
+		/* assigned when the message enters the window */
+		int seq;
+		final long flowKey;
+		final byte[] payload;
+		final CompletableFuture<Void> future;
+		long sentAt;
+		int transmissions;
+		boolean sacked;
+
+		Segment(long flowKey, byte[] payload) {
+			this.flowKey = flowKey;
+			this.payload = payload;
+			this.future = new CompletableFuture<>();
+		}
+	}
+
+	/*
+	 * both streams to and from one peer, guarded by the instance
+	 */
+	private final class Peer {
+		final int controller;
+
+		/* send stream */
+		int epoch;
+		int sendBase;
+		int nextSeq;
+		final Segment[] inFlight;
+		final ArrayDeque<Segment> queued;
+		double srtt = -1;
+		double rttvar;
+		long rto = INITIAL_RTO_MILLIS;
+		ScheduledFuture<?> retransmitTimer;
+
+		/* receive stream */
+		boolean synced;
+		int peerEpoch;
+		int rcvNext;
+		final byte[][] outOfOrder;
+		ScheduledFuture<?> ackTimer;
+
+		/* frames are built here, the sender copies them */
+		byte[] scratch;
+
+		Peer(int controller) {
+			this.controller = controller;
+			this.inFlight = new Segment[window];
+			this.queued = new ArrayDeque<>();
+			this.outOfOrder = new byte[window][];
+			this.scratch = new byte[RELIABLE_HEADER_LENGTH + MAX_SACK_BLOCKS * SACK_BLOCK_LENGTH];
+			resetStream();
+		}
+
+		private void resetStream() {
+			this.epoch = ThreadLocalRandom.current().nextInt();
+			this.sendBase = 1;
+			this.nextSeq = 1;
+			this.rto = INITIAL_RTO_MILLIS;
+			this.srtt = -1;
+		}
+
+		CompletableFuture<Void> send(long flowKey, byte[] payload) {
+			Segment segment;
+			synchronized (this)
+			{
+				if (this.queued.size() >= maxQueued)
+				{
+					CompletableFuture<Void> full = new CompletableFuture<>();
+					full.completeExceptionally(new IOException("Send queue to controller " + this.controller + " is full"));
+					return full;
+				}
+				segment = new Segment(flowKey, payload);
+				this.queued.add(segment);
+				fillWindow();
+			}
+			return segment.future;
+		}
+
+		/*
+		 * move queued messages into the window and send them
+		 */
+		private void fillWindow() {
+			while (!this.queued.isEmpty() && this.nextSeq - this.sendBase < window)
+			{
+				Segment segment = this.queued.poll();
+				segment.seq = this.nextSeq++;
+				this.inFlight[slot(segment.seq)] = segment;
+				transmit(segment);
+			}
+		}
+
+		private int slot(int seq) {
+			return seq & (window - 1);
+		}
+
+		private void transmit(Segment segment) {
+			segment.sentAt = System.currentTimeMillis();
+			segment.transmissions++;
+			int length = writeHeader(ControlHeader.TYPE_RELIABLE, segment.seq, segment.payload.length);
+			System.arraycopy(segment.payload, 0, this.scratch, length, segment.payload.length);
+			sender.send(this.controller, segment.flowKey, this.scratch, 0, length + segment.payload.length);
+			if (this.retransmitTimer == null)
+			{
+				armRetransmitTimer();
+			}
+		}
+
+		private void sendAck() {
+			int length = writeHeader(ControlHeader.TYPE_ACK, 0, 0);
+			sender.send(this.controller, ConnectionManager.NO_FLOW_KEY, this.scratch, 0, length);
+		}
+
+		/*
+		 * write header and acks into the scratch buffer, reserving room for
+		 * the payload
+		 * 
+		 * @return offset of the payload
+		 */
+		private int writeHeader(byte type, int seq, int payloadLength) {
+			int blocks = this.synced ? countSackBlocks() : 0;
+			int length = RELIABLE_HEADER_LENGTH + blocks * SACK_BLOCK_LENGTH;
+			if (this.scratch.length < length + payloadLength)
+			{
+				this.scratch = new byte[length + payloadLength];
+			}
+			byte[] frame = this.scratch;
+			ControlHeader.write(frame, 0, type, this.synced ? FLAG_ACK : 0, this.epoch, seq, controllerId, this.controller);
+			ControlHeader.putInt(frame, OFFSET_ACK, this.rcvNext);
+			ControlHeader.putInt(frame, OFFSET_ACK_EPOCH, this.peerEpoch);
+			ControlHeader.putInt(frame, OFFSET_BASE, this.sendBase);
+			ControlHeader.putShort(frame, OFFSET_SACK_COUNT, blocks);
+			writeSackBlocks(frame, RELIABLE_HEADER_LENGTH, blocks);
+			// the acks are on their way now
+			if (this.ackTimer != null)
+			{
+				this.ackTimer.cancel(false);
+				this.ackTimer = null;
+			}
+			return length;
+		}
+
+		private int countSackBlocks() {
+			int blocks = 0;
+			boolean inBlock = false;
+			for (int i = 1; i < window && blocks < MAX_SACK_BLOCKS; i++)
+			{
+				boolean buffered = this.outOfOrder[slot(this.rcvNext + i)] != null;
+				if (buffered && !inBlock)
+					blocks++;
+				inBlock = buffered;
+			}
+			return blocks;
+		}
+
+		private void writeSackBlocks(byte[] frame, int offset, int blocks) {
+			int start = 0;
+			boolean inBlock = false;
+			for (int i = 1; i <= window && blocks > 0; i++)
+			{
+				boolean buffered = i < window && this.outOfOrder[slot(this.rcvNext + i)] != null;
+				if (buffered && !inBlock)
+				{
+					start = this.rcvNext + i;
+				}
+				else if (!buffered && inBlock)
+				{
+					ControlHeader.putInt(frame, offset, start);
+					ControlHeader.putInt(frame, offset + 4, this.rcvNext + i);
+					offset += SACK_BLOCK_LENGTH;
+					blocks--;
+				}
+				inBlock = buffered;
+			}
+		}
+
+		void receive(byte[] data, int offset, int length, Receiver receiver) {
+			List<CompletableFuture<Void>> acked = new ArrayList<>();
+			synchronized (this)
+			{
+				int blocks = ControlHeader.getShort(data, offset + OFFSET_SACK_COUNT);
+				int payloadOffset = RELIABLE_HEADER_LENGTH + blocks * SACK_BLOCK_LENGTH;
+				if (payloadOffset > length)
+				{
+					return;
+				}
+				if ((ControlHeader.getFlags(data, offset) & FLAG_ACK) != 0 && ControlHeader.getInt(data, offset + OFFSET_ACK_EPOCH) == this.epoch)
+				{
+					onAck(data, offset, blocks, acked);
+				}
+				if (ControlHeader.getType(data, offset) == ControlHeader.TYPE_RELIABLE)
+				{
+					onData(data, offset, payloadOffset, length, receiver);
+				}
+			}
+			for (CompletableFuture<Void> future : acked)
+			{
+				future.complete(null);
+			}
+		}
+
+		private void onData(byte[] data, int offset, int payloadOffset, int length, Receiver receiver) {
+			int epoch = ControlHeader.getCosts(data, offset);
+			if (!this.synced || epoch != this.peerEpoch)
+			{
+				// new stream of the peer, start at its oldest unacknowledged message
+				this.synced = true;
+				this.peerEpoch = epoch;
+				this.rcvNext = ControlHeader.getInt(data, offset + OFFSET_BASE);
+				Arrays.fill(this.outOfOrder, null);
+			}
+			int seq = ControlHeader.getSequence(data, offset);
+			int distance = seq - this.rcvNext;
+			boolean ackNow = true;
+			if (distance == 0)
+			{
+				receiver.onMessage(this.controller, data, offset + payloadOffset, length - payloadOffset);
+				this.rcvNext++;
+				byte[] next;
+				while ((next = this.outOfOrder[slot(this.rcvNext)]) != null)
+				{
+					this.outOfOrder[slot(this.rcvNext)] = null;
+					receiver.onMessage(this.controller, next, 0, next.length);
+					this.rcvNext++;
+				}
+				// delay the ack unless there are still holes to report
+				ackNow = countSackBlocks() > 0;
+			}
+			else if (distance > 0 && distance < window && this.outOfOrder[slot(seq)] == null)
+			{
+				this.outOfOrder[slot(seq)] = Arrays.copyOfRange(data, offset + payloadOffset, offset + length);
+			}
+			// duplicates and messages beyond the window are acked right away
+			if (ackNow)
+			{
+				sendAck();
+			}
+			else if (this.ackTimer == null)
+			{
+				this.ackTimer = scheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						synchronized (Peer.this)
+						{
+							if (ackTimer != null)
+							{
+								sendAck();
+							}
+						}
+					}
+				}, ackDelayMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		private void onAck(byte[] data, int offset, int blocks, List<CompletableFuture<Void>> acked) {
+			long now = System.currentTimeMillis();
+			int ack = ControlHeader.getInt(data, offset + OFFSET_ACK);
+			if (ack - this.sendBase > 0 && ack - this.nextSeq <= 0)
+			{
+				for (int seq = this.sendBase; seq != ack; seq++)
+				{
+					Segment segment = this.inFlight[slot(seq)];
+					this.inFlight[slot(seq)] = null;
+					// Karn: retransmitted messages give no round-trip time, sacked ones gave it already
+					if (segment.transmissions == 1 && !segment.sacked && seq == ack - 1)
+					{
+						sampleRtt(now - segment.sentAt);
+					}
+					acked.add(segment.future);
+				}
+				this.sendBase = ack;
+				// progress ends the backoff
+				this.rto = estimatedRto();
+				cancelRetransmitTimer();
+				if (this.sendBase != this.nextSeq)
+				{
+					armRetransmitTimer();
+				}
+			}
+			int highestSacked = this.sendBase;
+			for (int i = 0; i < blocks; i++)
+			{
+				int blockOffset = offset + RELIABLE_HEADER_LENGTH + i * SACK_BLOCK_LENGTH;
+				int start = ControlHeader.getInt(data, blockOffset);
+				int end = ControlHeader.getInt(data, blockOffset + 4);
+				// the blocks come from the wire, bound them by the messages in flight
+				if (end - start <= 0 || end - start > window)
+					continue;
+				int first = start - this.sendBase < 0 ? this.sendBase : start;
+				int last = end - this.nextSeq > 0 ? this.nextSeq : end;
+				for (int seq = first; seq - last < 0; seq++)
+				{
+					Segment segment = this.inFlight[slot(seq)];
+					if (!segment.sacked && segment.transmissions == 1 && seq == end - 1)
+					{
+						sampleRtt(now - segment.sentAt);
+					}
+					segment.sacked = true;
+					if (seq - highestSacked >= 0)
+						highestSacked = seq + 1;
+				}
+			}
+			// holes below selectively acked messages are lost, unless just retransmitted
+			long minAge = this.srtt < 0 ? this.rto : (long) this.srtt;
+			for (int seq = this.sendBase; seq - highestSacked < 0; seq++)
+			{
+				Segment segment = this.inFlight[slot(seq)];
+				if (!segment.sacked && now - segment.sentAt > minAge)
+				{
+					EvalCollector.get().incrementRetransmissions();
+					transmit(segment);
+				}
+			}
+			fillWindow();
+		}
+
+		/*
+		 * RFC 6298 estimator
+		 */
+		private void sampleRtt(long rttMillis) {
+			if (this.srtt < 0)
+			{
+				this.srtt = rttMillis;
+				this.rttvar = rttMillis / 2.0;
+			}
+			else
+			{
+				this.rttvar = 0.75 * this.rttvar + 0.25 * Math.abs(this.srtt - rttMillis);
+				this.srtt = 0.875 * this.srtt + 0.125 * rttMillis;
+			}
+			this.rto = estimatedRto();
+		}
+
+		private long estimatedRto() {
+			if (this.srtt < 0)
+				return INITIAL_RTO_MILLIS;
+			return Math.min(MAX_RTO_MILLIS, Math.max(minRtoMillis, (long) Math.ceil(this.srtt + 4 * this.rttvar)));
+		}
+
+		private void armRetransmitTimer() {
+			this.retransmitTimer = scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					onRetransmitTimeout();
+				}
+			}, this.rto, TimeUnit.MILLISECONDS);
+		}
+
+		private void cancelRetransmitTimer() {
+			if (this.retransmitTimer != null)
+			{
+				this.retransmitTimer.cancel(false);
+				this.retransmitTimer = null;
+			}
+		}
+
+		private void onRetransmitTimeout() {
+			List<CompletableFuture<Void>> failed = new ArrayList<>();
+			synchronized (this)
+			{
+				this.retransmitTimer = null;
+				Segment oldest = null;
+				for (int seq = this.sendBase; seq != this.nextSeq; seq++)
+				{
+					Segment segment = this.inFlight[slot(seq)];
+					if (!segment.sacked)
+					{
+						oldest = segment;
+						break;
+					}
+				}
+				if (oldest == null)
+				{
+					// everything is selectively acked, wait for the cumulative ack
+					if (this.sendBase != this.nextSeq)
+						armRetransmitTimer();
+					return;
+				}
+				if (oldest.transmissions >= MAX_TRANSMISSIONS)
+				{
+					giveUp(failed);
+				}
+				else
+				{
+					this.rto = Math.min(MAX_RTO_MILLIS, 2 * this.rto);
+					EvalCollector.get().incrementRetransmissions();
+					transmit(oldest);
+				}
+			}
+			IOException e = new IOException("No acknowledgement from controller " + this.controller);
+			for (CompletableFuture<Void> future : failed)
+			{
+				future.completeExceptionally(e);
+			}
+		}
+
+		/*
+		 * drop all messages and start a new stream
+		 */
+		private void giveUp(List<CompletableFuture<Void>> failed) {
+			System.err.println("Reliable stream to " + this.controller + " failed, " + (this.nextSeq - this.sendBase) + " messages in flight and "
+					+ this.queued.size() + " queued are dropped");
+			for (int seq = this.sendBase; seq != this.nextSeq; seq++)
+			{
+				failed.add(this.inFlight[slot(seq)].future);
+				this.inFlight[slot(seq)] = null;
+			}
+			for (Segment segment : this.queued)
+			{
+				failed.add(segment.future);
+			}
+			this.queued.clear();
+			resetStream();
+		}
+	}
+}
@@ -0,0 +1,256 @@
+/**
+    Licensed to the Apache Software Foundation (ASF) under one
+    or more contributor license agreements.  See the NOTICE file
+    distributed with this work for additional information
+    regarding copyright ownership.  The ASF licenses this file
+    to you under the Apache License, Version 2.0 (the
+    "License"); you may not use this file except in compliance
+    with the License.  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on an
+    "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied.  See the License for the
+    specific language governing permissions and limitations
+    under the License.
+    
+    
+    @author Rhaban Hark
+**/
+package de.tud.kom.inband;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.tud.kom.inband.eval.EvalCollector;
+import de.tud.kom.inband.service.ControllerCommunicationService.RequestHandler;
+import de.tud.kom.inband.util.ControlHeader;
+import de.tud.kom.inband.util.HashedTimerWheel;
+
+/**
+ * Requests to foreign controllers and their responses.
+ * 
+ * A request is a {@link ControlHeader} of type
+ * {@link ControlHeader#TYPE_REQUEST} carrying the correlation id as sequence
+ * number, followed by the payload. The response has type
+ * {@link ControlHeader#TYPE_RESPONSE} and the same id, an error response
+ * carries the error message and {@link #FLAG_ERROR}.
+ * 
+ * Pending requests are kept in a concurrent table keyed by controller and
+ * id, so any number of requests per peer may be in flight without a common
+ * lock. The table is bounded, a request beyond the limit fails right away.
+ * Each request has a timeout on a {@link HashedTimerWheel} which evicts it.
+ * 
+ * Incoming requests are answered by the registered {@link RequestHandler} on
+ * the executor, never on the OpenFlow I/O thread; the futures of own
+ * requests are completed there as well.
+ */
+public class RequestTracker {
+
+	public static final int FLAG_ERROR = 1;
+
+	private static final class Pending {
+		final CompletableFuture<byte[]> future = new CompletableFuture<>();
+		/* set after the request is published, a response may come first */
+		volatile HashedTimerWheel.Timeout timeout;
+	}
+
+	private int controllerId;
+	private PayloadSender sender;
+	private HashedTimerWheel wheel;
+	private ExecutorService executor;
+	private int maxPending;
+	private volatile RequestHandler handler;
+	private ConcurrentMap<Long, Pending> pending;
+	private AtomicInteger pendingCount;
+	private AtomicInteger nextId;
+
+	/**
+	 * @param maxPending
+	 *            requests waiting for a response, over all peers
+	 */
+	public RequestTracker(int controllerId, PayloadSender sender, HashedTimerWheel wheel, ExecutorService executor, int maxPending) {
+		this.controllerId = controllerId;
+		this.sender = sender;
+		this.wheel = wheel;
+		this.executor = executor;
+		this.maxPending = maxPending;
+		this.pending = new ConcurrentHashMap<>();
+		this.pendingCount = new AtomicInteger();
+		this.nextId = new AtomicInteger();
+	}
+
+	public void setHandler(RequestHandler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * @return completed with the response, failed if the table is full, the
+	 *         request cannot be sent, the peer answers with an error or the
+	 *         timeout expires
+	 */
+	public CompletableFuture<byte[]> request(final int controller, byte[] payload, long timeoutMillis) {
+		final Pending request = new Pending();
+		if (this.pendingCount.incrementAndGet() > this.maxPending)
+		{
+			this.pendingCount.decrementAndGet();
+			request.future.completeExceptionally(new IOException("Too many pending requests"));
+			return request.future;
+		}
+		final int id = this.nextId.incrementAndGet();
+		this.pending.put(key(controller, id), request);
+		request.timeout = this.wheel.newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				if (remove(controller, id) != null)
+				{
+					EvalCollector.get().incrementRequestTimeouts();
+					complete(request, null, new TimeoutException("No response from controller " + controller));
+				}
+			}
+		}, timeoutMillis);
+
+		byte[] frame = new byte[ControlHeader.LENGTH + payload.length];
+		ControlHeader.write(frame, 0, ControlHeader.TYPE_REQUEST, 0, 0, id, this.controllerId, controller);
+		System.arraycopy(payload, 0, frame, ControlHeader.LENGTH, payload.length);
+		if (!this.sender.send(controller, ConnectionManager.NO_FLOW_KEY, frame, 0, frame.length) && remove(controller, id) != null)
+		{
+			request.timeout.cancel();
+			request.future.completeExceptionally(new IOException("Cannot send request to controller " + controller));
+		}
+		return request.future;
+	}
+
+	/**
+	 * @return true if the payload is a request or a response
+	 */
+	public static boolean isRequestOrResponse(byte[] data, int offset, int length) {
+		if (!ControlHeader.isBinary(data, offset, length))
+			return false;
+		byte type = ControlHeader.getType(data, offset);
+		return type == ControlHeader.TYPE_REQUEST || type == ControlHeader.TYPE_RESPONSE;
+	}
+
+	/**
+	 * answer a request on the executor or complete the pending request of a
+	 * response
+	 */
+	public void receive(int controller, byte[] data, int offset, int length) {
+		int id = ControlHeader.getSequence(data, offset);
+		byte[] payload = Arrays.copyOfRange(data, offset + ControlHeader.LENGTH, offset + length);
+		if (ControlHeader.getType(data, offset) == ControlHeader.TYPE_REQUEST)
+		{
+			answer(controller, id, payload);
+			return;
+		}
+		Pending request = remove(controller, id);
+		// late response of an evicted request
+		if (request == null)
+		{
+			return;
+		}
+		HashedTimerWheel.Timeout timeout = request.timeout;
+		if (timeout != null)
+		{
+			timeout.cancel();
+		}
+		if ((ControlHeader.getFlags(data, offset) & FLAG_ERROR) != 0)
+		{
+			complete(request, null, new IOException("Controller " + controller + " failed: " + new String(payload)));
+		}
+		else
+		{
+			complete(request, payload, null);
+		}
+	}
+
+	/*
+	 * dependent stages of the future run on the executor, not on the I/O
+	 * thread or the timer wheel
+	 */
+	private void complete(final Pending request, final byte[] response, final Throwable error) {
+		Runnable completion = new Runnable() {
+			@Override
+			public void run() {
+				if (error != null)
+				{
+					request.future.completeExceptionally(error);
+				}
+				else
+				{
+					request.future.complete(response);
+				}
+			}
+		};
+		try
+		{
+			this.executor.execute(completion);
+		} catch (RejectedExecutionException e)
+		{
+			completion.run();
+		}
+	}
+
+	private void answer(final int controller, final int id, final byte[] request) {
+		final RequestHandler h = this.handler;
+		if (h == null)
+		{
+			respond(controller, id, FLAG_ERROR, "no request handler".getBytes());
+			return;
+		}
+		try
+		{
+			this.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					byte[] response;
+					try
+					{
+						response = h.onRequest(controller, request);
+					} catch (RuntimeException e)
+					{
+						respond(controller, id, FLAG_ERROR, String.valueOf(e).getBytes());
+						return;
+					}
+					respond(controller, id, 0, response != null ? response : new byte[0]);
+				}
+			});
+		} catch (RejectedExecutionException e)
+		{
+			respond(controller, id, FLAG_ERROR, "overloaded".getBytes());
+		}
+	}
+
+	private void respond(int controller, int id, int flags, byte[] payload) {
+		byte[] frame = new byte[ControlHeader.LENGTH + payload.length];
+		ControlHeader.write(frame, 0, ControlHeader.TYPE_RESPONSE, flags, 0, id, this.controllerId, controller);
+		System.arraycopy(payload, 0, frame, ControlHeader.LENGTH, payload.length);
+		this.sender.send(controller, ConnectionManager.NO_FLOW_KEY, frame, 0, frame.length);
+	}
+
+	private Pending remove(int controller, int id) {
+		Pending request = this.pending.remove(key(controller, id));
+		if (request != null)
+		{
+			this.pendingCount.decrementAndGet();
+		}
+		return request;
+	}
+
+	private static long key(int controller, int id) {
+		return (long) controller << 32 | (id & 0xffffffffL);
+	}
+
+	public int getPendingCount() {
+		return this.pendingCount.get();
+	}
+}
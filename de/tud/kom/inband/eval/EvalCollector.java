@@ -27,6 +27,7 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -39,6 +40,18 @@ public class EvalCollector {
 	private List<Long> newBestConnection;
 	private List<Long> intraNetworkDiscoveries;
 	private List<Long> rules;
+	private List<Long> droppedDeliveries;
+	private List<Long> rerouteLatencies;
+	private List<Long> ruleExpirations;
+	private List<Long> ruleReinstalls;
+	private List<Long> ruleCacheHits;
+	private List<Long> ruleCacheMisses;
+	private List<Long> suppressedDiscoveries;
+	private List<Long> meterDrops;
+	private List<Long> loadChanges;
+	private List<Long> suppressedFlips;
+	private List<Long> retransmissions;
+	private List<Long> requestTimeouts;
 	private int controllerId;
 	
 	static{
@@ -53,12 +66,24 @@ public class EvalCollector {
 	}
 
 	private EvalCollector() {
-		this.discoveries = new LinkedList<>();
-		this.activations = new LinkedList<>();
-		this.firstConnection = new LinkedList<>();
-		this.newBestConnection = new LinkedList<>();
-		this.intraNetworkDiscoveries = new LinkedList<>();
-		this.rules = new LinkedList<>();
+		this.discoveries = Collections.synchronizedList(new LinkedList<Long>());
+		this.activations = Collections.synchronizedList(new LinkedList<Long>());
+		this.firstConnection = Collections.synchronizedList(new LinkedList<Long>());
+		this.newBestConnection = Collections.synchronizedList(new LinkedList<Long>());
+		this.intraNetworkDiscoveries = Collections.synchronizedList(new LinkedList<Long>());
+		this.rules = Collections.synchronizedList(new LinkedList<Long>());
+		this.droppedDeliveries = Collections.synchronizedList(new LinkedList<Long>());
+		this.rerouteLatencies = Collections.synchronizedList(new LinkedList<Long>());
+		this.ruleExpirations = Collections.synchronizedList(new LinkedList<Long>());
+		this.ruleReinstalls = Collections.synchronizedList(new LinkedList<Long>());
+		this.ruleCacheHits = Collections.synchronizedList(new LinkedList<Long>());
+		this.ruleCacheMisses = Collections.synchronizedList(new LinkedList<Long>());
+		this.suppressedDiscoveries = Collections.synchronizedList(new LinkedList<Long>());
+		this.meterDrops = Collections.synchronizedList(new LinkedList<Long>());
+		this.loadChanges = Collections.synchronizedList(new LinkedList<Long>());
+		this.suppressedFlips = Collections.synchronizedList(new LinkedList<Long>());
+		this.retransmissions = Collections.synchronizedList(new LinkedList<Long>());
+		this.requestTimeouts = Collections.synchronizedList(new LinkedList<Long>());
 	}
 
 	public static EvalCollector get() {
@@ -93,6 +118,59 @@ public class EvalCollector {
 		rules.add(System.currentTimeMillis());
 	}
 
+	public void incrementDroppedDeliveries() {
+		droppedDeliveries.add(System.currentTimeMillis());
+	}
+
+	/**
+	 * @param latency
+	 *            from the port event until the next connection was activated,
+	 *            in microseconds
+	 */
+	public void addRerouteLatency(long latency) {
+		rerouteLatencies.add(latency);
+	}
+
+	public void incrementRuleExpirations() {
+		ruleExpirations.add(System.currentTimeMillis());
+	}
+
+	public void incrementRuleReinstalls() {
+		ruleReinstalls.add(System.currentTimeMillis());
+	}
+
+	public void incrementRuleCacheHits() {
+		ruleCacheHits.add(System.currentTimeMillis());
+	}
+
+	public void incrementRuleCacheMisses() {
+		ruleCacheMisses.add(System.currentTimeMillis());
+	}
+
+	public void incrementSuppressedDiscoveries() {
+		suppressedDiscoveries.add(System.currentTimeMillis());
+	}
+
+	public void addMeterDrops(long dropped) {
+		meterDrops.add(dropped);
+	}
+
+	public void incrementLoadChanges() {
+		loadChanges.add(System.currentTimeMillis());
+	}
+
+	public void incrementSuppressedFlips() {
+		suppressedFlips.add(System.currentTimeMillis());
+	}
+
+	public void incrementRetransmissions() {
+		retransmissions.add(System.currentTimeMillis());
+	}
+
+	public void incrementRequestTimeouts() {
+		requestTimeouts.add(System.currentTimeMillis());
+	}
+
 	public String getDiscoveries() {
 		return Arrays.toString(discoveries.toArray());
 	}
@@ -117,6 +195,54 @@ public class EvalCollector {
 		return Arrays.toString(rules.toArray());
 	}
 
+	public String getDroppedDeliveries() {
+		return Arrays.toString(droppedDeliveries.toArray());
+	}
+
+	public String getRerouteLatencies() {
+		return Arrays.toString(rerouteLatencies.toArray());
+	}
+
+	public String getRuleExpirations() {
+		return Arrays.toString(ruleExpirations.toArray());
+	}
+
+	public String getRuleReinstalls() {
+		return Arrays.toString(ruleReinstalls.toArray());
+	}
+
+	public String getRuleCacheHits() {
+		return Arrays.toString(ruleCacheHits.toArray());
+	}
+
+	public String getRuleCacheMisses() {
+		return Arrays.toString(ruleCacheMisses.toArray());
+	}
+
+	public String getSuppressedDiscoveries() {
+		return Arrays.toString(suppressedDiscoveries.toArray());
+	}
+
+	public String getMeterDrops() {
+		return Arrays.toString(meterDrops.toArray());
+	}
+
+	public String getLoadChanges() {
+		return Arrays.toString(loadChanges.toArray());
+	}
+
+	public String getSuppressedFlips() {
+		return Arrays.toString(suppressedFlips.toArray());
+	}
+
+	public String getRetransmissions() {
+		return Arrays.toString(retransmissions.toArray());
+	}
+
+	public String getRequestTimeouts() {
+		return Arrays.toString(requestTimeouts.toArray());
+	}
+
 
 	public void writeOut() {
 		try
@@ -134,6 +260,18 @@ public class EvalCollector {
 			str.append("\nnewBest=").append(newBestConnection);
 			str.append("\nintradiscoveries=").append(intraNetworkDiscoveries);
 			str.append("\nrules=").append(rules);
+			str.append("\ndroppedDeliveries=").append(droppedDeliveries);
+			str.append("\nrerouteLatencies=").append(rerouteLatencies);
+			str.append("\nruleExpirations=").append(ruleExpirations);
+			str.append("\nruleReinstalls=").append(ruleReinstalls);
+			str.append("\nruleCacheHits=").append(ruleCacheHits);
+			str.append("\nruleCacheMisses=").append(ruleCacheMisses);
+			str.append("\nsuppressedDiscoveries=").append(suppressedDiscoveries);
+			str.append("\nmeterDrops=").append(meterDrops);
+			str.append("\nloadChanges=").append(loadChanges);
+			str.append("\nsuppressedFlips=").append(suppressedFlips);
+			str.append("\nretransmissions=").append(retransmissions);
+			str.append("\nrequestTimeouts=").append(requestTimeouts);
 			writer.write(str.toString());
 			writer.flush();
 			writer.close();
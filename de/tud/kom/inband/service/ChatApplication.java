@@ -60,8 +60,6 @@ public class ChatApplication implements MessageListener {
 
 	@Override
 	public void onMessage(int dispatcher, String message) {
-		if(message.equals("keep_alive"))
-			return;
 		System.out.println("Chat " + dispatcher + ": \"" + message + "\"");
 	}
 }
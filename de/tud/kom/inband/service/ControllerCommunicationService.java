@@ -22,7 +22,10 @@
 
 package de.tud.kom.inband.service;
 
+import java.nio.ByteBuffer;
+import java.time.Duration;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import net.floodlightcontroller.core.module.IFloodlightService;
 
@@ -32,10 +35,82 @@ public interface ControllerCommunicationService extends IFloodlightService {
 		public void onMessage(int dispatcher, String message);
 	}
 
+	/**
+	 * Receives messages without charset conversion. The buffer is a
+	 * read-only view of the received packet, it must be copied if it is
+	 * needed after onMessage returns.
+	 */
+	public interface BinaryMessageListener {
+		public void onMessage(int dispatcher, ByteBuffer message);
+	}
+
+	/**
+	 * Answers requests of foreign controllers. Runs on the dispatch
+	 * executor and may block; a RuntimeException is returned to the
+	 * requester as error.
+	 */
+	public interface RequestHandler {
+		/**
+		 * @return the response, null for an empty one
+		 */
+		public byte[] onRequest(int controller, byte[] request);
+	}
+
 	public Set<Integer> getConnectedController();
 
 	public boolean sendMessageToController(int controller, String message);
 
+	/**
+	 * messages with the same flow key are kept in order on one path if
+	 * multipath sending is enabled; Long.MIN_VALUE is reserved for
+	 * messages without a flow key
+	 */
+	public boolean sendMessageToController(int controller, String message, long flowKey);
+
+	public boolean sendMessageToController(int controller, byte[] message);
+
+	/**
+	 * @see #sendMessageToController(int, String, long)
+	 */
+	public boolean sendMessageToController(int controller, byte[] message, long flowKey);
+
+	/**
+	 * sends the remaining bytes of the buffer, its position is not changed
+	 */
+	public boolean sendMessageToController(int controller, ByteBuffer message);
+
+	/**
+	 * @see #sendMessageToController(int, ByteBuffer)
+	 * @see #sendMessageToController(int, String, long)
+	 */
+	public boolean sendMessageToController(int controller, ByteBuffer message, long flowKey);
+
+	/**
+	 * Send the message on the reliable stream to the controller. Messages on
+	 * the stream reach the listeners of the peer once and in order.
+	 * 
+	 * @return completed when the peer acknowledged the message, failed if it
+	 *         cannot be sent or the peer does not acknowledge it
+	 */
+	public CompletableFuture<Void> sendReliableMessageToController(int controller, byte[] message);
+
+	/**
+	 * Send a request to the controller, any number of requests may be
+	 * pending at the same time.
+	 * 
+	 * @return completed with the response of the handler of the controller,
+	 *         failed if there are too many pending requests, the request
+	 *         cannot be sent, the handler fails or the timeout expires
+	 */
+	public CompletableFuture<byte[]> request(int controller, byte[] payload, Duration timeout);
+
+	/**
+	 * replaces the previously registered handler
+	 */
+	public void registerRequestHandler(RequestHandler h);
+
 	public void registerMessageListener(MessageListener l);
 
+	public void registerBinaryMessageListener(BinaryMessageListener l);
+
 }
@@ -0,0 +1,408 @@
+/**
+    Licensed to the Apache Software Foundation (ASF) under one
+    or more contributor license agreements.  See the NOTICE file
+    distributed with this work for additional information
+    regarding copyright ownership.  The ASF licenses this file
+    to you under the Apache License, Version 2.0 (the
+    "License"); you may not use this file except in compliance
+    with the License.  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on an
+    "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied.  See the License for the
+    specific language governing permissions and limitations
+    under the License.
+    
+    
+    @author Rhaban Hark
+**/
+
+package de.tud.kom.inband.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.projectfloodlight.openflow.types.OFPort;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * All known connections to one foreign controller, ordered by their costs
+ * and indexed by the switch port they start at. Connections with equal
+ * costs keep the order in which they were found.
+ * 
+ * Writers have to be serialized by the owner. Readers only see the
+ * immutable snapshot which is republished after every change, so they
+ * never block and never observe a half-updated order.
+ * 
+ * The connection in use is not necessarily the cheapest one: switching
+ * away from it needs a minimum relative improvement, and after a switch
+ * the new connection is kept for a hold-down time which grows with the
+ * number of recent switches (decaying with a half-life).
+ */
+public class ConnectionSet {
+
+	private static final Comparator<ControllerConnection> BY_COSTS = new Comparator<ControllerConnection>() {
+		@Override
+		public int compare(ControllerConnection a, ControllerConnection b) {
+			if (a.costs != b.costs)
+				return a.costs < b.costs ? -1 : 1;
+			return Long.compare(a.order, b.order);
+		}
+	};
+
+	/* ranking costs added per millisecond of round-trip time */
+	private static volatile double costsPerRttMilli = 1;
+
+	public static void setCostsPerRttMilli(double costs) {
+		costsPerRttMilli = costs;
+	}
+
+	/*
+	 * connections without round-trip time sample are ranked with the mean of
+	 * the measured ones, so they neither win nor lose by being unknown
+	 */
+	private int rankingCosts(ControllerConnection connection) {
+		int costs = connection.getHops() + connection.getLoadCosts();
+		double rtt = connection.getRttMillis();
+		if (rtt < 0)
+			rtt = meanRtt();
+		if (rtt < 0)
+			return costs;
+		return costs + (int) Math.round(rtt * costsPerRttMilli);
+	}
+
+	/*
+	 * @return mean round-trip time of the measured connections, -1 if none is
+	 * measured
+	 */
+	private double meanRtt() {
+		double sum = 0;
+		int count = 0;
+		for (ControllerConnection c : this.index.values())
+		{
+			if (c.getRttMillis() >= 0)
+			{
+				sum += c.getRttMillis();
+				count++;
+			}
+		}
+		return count > 0 ? sum / count : -1;
+	}
+
+	private TreeSet<ControllerConnection> ordered;
+	private Map<SwitchPort, ControllerConnection> index;
+	private long nextOrder;
+	private volatile List<ControllerConnection> snapshot;
+	private AtomicInteger roundRobin = new AtomicInteger();
+	/* connection in use, null until the first one is used or after it was removed */
+	private volatile ControllerConnection current;
+	private long switchedAt;
+	/* recent switches, decaying since flapsAt */
+	private double flaps;
+	private long flapsAt;
+	/* last candidate which was not used, so every suppressed switch is counted once */
+	private ControllerConnection suppressed;
+	/* relative improvement of the costs needed to switch away from the used connection */
+	private volatile double minImprovement;
+	private volatile long holdDownMillis;
+	private volatile long flapHalfLifeMillis = 60000;
+
+	public ConnectionSet() {
+		this.ordered = new TreeSet<>(BY_COSTS);
+		this.index = new HashMap<>();
+		this.snapshot = Collections.emptyList();
+	}
+
+	/**
+	 * @param minImprovement
+	 *            fraction of the costs of the used connection a candidate
+	 *            has to be cheaper
+	 * @param holdDownMillis
+	 *            time after a switch before the next one, multiplied by the
+	 *            number of recent switches
+	 * @param flapHalfLifeMillis
+	 *            after which half of the recent switches are forgotten
+	 */
+	public void setHysteresis(double minImprovement, long holdDownMillis, long flapHalfLifeMillis) {
+		this.minImprovement = minImprovement;
+		this.holdDownMillis = holdDownMillis;
+		this.flapHalfLifeMillis = Math.max(1, flapHalfLifeMillis);
+	}
+
+	/**
+	 * Insert a new connection or lower the (hop) costs of an already known
+	 * one. Worse costs for a known switch port are ignored.
+	 * 
+	 * @return the stored connection or null if nothing changed
+	 */
+	public ControllerConnection store(IOFSwitch sw, OFPort port, int costs) {
+		SwitchPort key = new SwitchPort(sw, port);
+		ControllerConnection connection = this.index.get(key);
+		if (connection == null)
+		{
+			connection = new ControllerConnection(sw, port, costs);
+			connection.order = this.nextOrder++;
+			// the port may be congested already, its load costs change only with the load
+			connection.setLoadCosts(PortLoad.getPenalty(key));
+			connection.setCosts(rankingCosts(connection));
+			this.index.put(key, connection);
+			this.ordered.add(connection);
+			publish();
+			return connection;
+		}
+		if (costs >= connection.getHops())
+		{
+			return null;
+		}
+		this.ordered.remove(connection);
+		connection.setHops(costs);
+		connection.setCosts(rankingCosts(connection));
+		this.ordered.add(connection);
+		publish();
+		return connection;
+	}
+
+	/**
+	 * Record a round-trip time sample of the connection and move it to its
+	 * new position.
+	 * 
+	 * @param alpha
+	 *            weight of the sample in the moving average
+	 * @return the connection or null if none starts at the port
+	 */
+	public ControllerConnection updateRtt(SwitchPort key, double rttMillis, double alpha) {
+		ControllerConnection connection = this.index.get(key);
+		if (connection == null)
+		{
+			return null;
+		}
+		double previous = connection.getRttMillis();
+		this.ordered.remove(connection);
+		connection.setRttMillis(previous < 0 ? rttMillis : alpha * rttMillis + (1 - alpha) * previous);
+		connection.setCosts(rankingCosts(connection));
+		this.ordered.add(connection);
+		// the mean changed, move the unmeasured connections along
+		for (ControllerConnection c : this.index.values())
+		{
+			if (c.getRttMillis() < 0)
+			{
+				this.ordered.remove(c);
+				c.setCosts(rankingCosts(c));
+				this.ordered.add(c);
+			}
+		}
+		publish();
+		return connection;
+	}
+
+	/**
+	 * Set the extra costs of a congested egress port and move the connection
+	 * to its new position.
+	 * 
+	 * @return the connection or null if none starts at the port or its costs
+	 *         did not change
+	 */
+	public ControllerConnection updateLoad(SwitchPort key, int loadCosts) {
+		ControllerConnection connection = this.index.get(key);
+		if (connection == null || connection.getLoadCosts() == loadCosts)
+		{
+			return null;
+		}
+		this.ordered.remove(connection);
+		connection.setLoadCosts(loadCosts);
+		connection.setCosts(rankingCosts(connection));
+		this.ordered.add(connection);
+		publish();
+		return connection;
+	}
+
+	/**
+	 * @return the removed connection or null if none starts at the port
+	 */
+	public ControllerConnection remove(SwitchPort key) {
+		ControllerConnection connection = this.index.remove(key);
+		if (connection != null)
+		{
+			this.ordered.remove(connection);
+			if (connection == this.current)
+				this.current = null;
+			if (connection == this.suppressed)
+				this.suppressed = null;
+			publish();
+		}
+		return connection;
+	}
+
+	/**
+	 * @return the connection in use or the best one if none is used yet
+	 */
+	public ControllerConnection current() {
+		ControllerConnection c = this.current;
+		return c != null ? c : first();
+	}
+
+	/**
+	 * Check whether the candidate should replace the connection in use.
+	 * 
+	 * @return 0 to use the candidate now, the remaining hold-down in
+	 *         milliseconds or -1 if the candidate is not cheap enough
+	 */
+	public long switchDelay(ControllerConnection candidate, long now) {
+		ControllerConnection used = this.current;
+		if (used == null || used == candidate)
+		{
+			return 0;
+		}
+		double gain = used.getCosts() - candidate.getCosts();
+		if (gain <= 0 || gain < this.minImprovement * used.getCosts())
+		{
+			return -1;
+		}
+		long wait = this.switchedAt + (long) (this.holdDownMillis * Math.max(1, decayedFlaps(now))) - now;
+		return wait > 0 ? wait : 0;
+	}
+
+	/**
+	 * use the connection from now on, counting a switch if another one was
+	 * used before
+	 */
+	public void use(ControllerConnection connection, long now) {
+		ControllerConnection used = this.current;
+		if (used == connection)
+		{
+			return;
+		}
+		if (used != null)
+		{
+			this.flaps = decayedFlaps(now) + 1;
+			this.flapsAt = now;
+			this.switchedAt = now;
+		}
+		this.current = connection;
+		this.suppressed = null;
+	}
+
+	/**
+	 * remember a candidate which was not used
+	 * 
+	 * @return false if it was already the last suppressed one
+	 */
+	public boolean suppress(ControllerConnection candidate) {
+		if (candidate == this.suppressed)
+		{
+			return false;
+		}
+		this.suppressed = candidate;
+		return true;
+	}
+
+	private double decayedFlaps(long now) {
+		return this.flaps * Math.pow(0.5, (now - this.flapsAt) / (double) this.flapHalfLifeMillis);
+	}
+
+	private void publish() {
+		this.snapshot = Collections.unmodifiableList(new ArrayList<>(this.ordered));
+	}
+
+	/**
+	 * only for writers
+	 */
+	public ControllerConnection get(SwitchPort key) {
+		return this.index.get(key);
+	}
+
+	public ControllerConnection first() {
+		List<ControllerConnection> current = this.snapshot;
+		return current.isEmpty() ? null : current.get(0);
+	}
+
+	public boolean isEmpty() {
+		return this.snapshot.isEmpty();
+	}
+
+	public int size() {
+		return this.snapshot.size();
+	}
+
+	/**
+	 * @return the activated connections in round-robin order, the best
+	 *         connection if none is activated
+	 */
+	public ControllerConnection nextRoundRobin() {
+		List<ControllerConnection> current = this.snapshot;
+		int size = current.size();
+		int start = this.roundRobin.getAndIncrement() & Integer.MAX_VALUE;
+		for (int i = 0; i < size; i++)
+		{
+			ControllerConnection c = current.get((start + i) % size);
+			if (c.isActivated())
+				return c;
+		}
+		return size > 0 ? current.get(0) : null;
+	}
+
+	/**
+	 * Pick an activated connection with a probability proportional to
+	 * 1/costs.
+	 * 
+	 * @param point
+	 *            in [0, 1), equal points select the same connection as long
+	 *            as the set does not change
+	 */
+	public ControllerConnection pickWeighted(double point) {
+		List<ControllerConnection> current = this.snapshot;
+		double total = 0;
+		for (ControllerConnection c : current)
+		{
+			if (c.isActivated())
+				total += weight(c);
+		}
+		if (total == 0)
+		{
+			return current.isEmpty() ? null : current.get(0);
+		}
+		double target = point * total;
+		ControllerConnection last = null;
+		for (ControllerConnection c : current)
+		{
+			if (!c.isActivated())
+				continue;
+			last = c;
+			target -= weight(c);
+			if (target < 0)
+				return c;
+		}
+		return last;
+	}
+
+	private static double weight(ControllerConnection c) {
+		return 1.0 / Math.max(1, c.getCosts());
+	}
+
+	public int countActivated() {
+		int count = 0;
+		for (ControllerConnection c : this.snapshot)
+		{
+			if (c.isActivated())
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return immutable snapshot ordered by costs
+	 */
+	public List<ControllerConnection> asList() {
+		return this.snapshot;
+	}
+}
@@ -0,0 +1,159 @@
+/**
+    Licensed to the Apache Software Foundation (ASF) under one
+    or more contributor license agreements.  See the NOTICE file
+    distributed with this work for additional information
+    regarding copyright ownership.  The ASF licenses this file
+    to you under the Apache License, Version 2.0 (the
+    "License"); you may not use this file except in compliance
+    with the License.  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on an
+    "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied.  See the License for the
+    specific language governing permissions and limitations
+    under the License.
+    
+    
+    @author Rhaban Hark
+**/
+
+package de.tud.kom.inband.util;
+
+/**
+ * Fixed-layout binary header of in-band control messages. All fields are
+ * read and written in place, no intermediate objects are created.
+ * 
+ * <pre>
+ *  0      magic 0xFF (never the first byte of the old text format)
+ *  1      version
+ *  2      type
+ *  3      flags
+ *  4..7   costs
+ *  8..11  sequence number
+ * 12..13  source controller
+ * 14..15  target controller
+ * </pre>
+ * 
+ * Later versions may only append fields, so every version can read the
+ * first {@link #LENGTH} bytes.
+ */
+public class ControlHeader {
+
+	public static final byte MAGIC = (byte) 0xFF;
+	public static final byte VERSION = 1;
+	public static final int LENGTH = 16;
+
+	public static final byte TYPE_DISCOVERY = 1;
+	public static final byte TYPE_ACTIVATION = 2;
+	public static final byte TYPE_BATCH = 3;
+	public static final byte TYPE_FRAGMENT = 4;
+	/* application message which would otherwise be mistaken for a header */
+	public static final byte TYPE_DATA = 5;
+	public static final byte TYPE_KEEPALIVE = 6;
+	/* round-trip time measurement, answered with a PROBE_REPLY echoing the payload */
+	public static final byte TYPE_PROBE = 7;
+	public static final byte TYPE_PROBE_REPLY = 8;
+	/* numbered message of a reliable stream, and an ack without message */
+	public static final byte TYPE_RELIABLE = 9;
+	public static final byte TYPE_ACK = 10;
+	/* request with the correlation id as sequence number, answered by a RESPONSE with the same id */
+	public static final byte TYPE_REQUEST = 11;
+	public static final byte TYPE_RESPONSE = 12;
+
+	private static final int OFFSET_VERSION = 1;
+	private static final int OFFSET_TYPE = 2;
+	private static final int OFFSET_FLAGS = 3;
+	private static final int OFFSET_COSTS = 4;
+	private static final int OFFSET_SEQUENCE = 8;
+	private static final int OFFSET_SOURCE = 12;
+	private static final int OFFSET_TARGET = 14;
+
+	public static byte[] encode(byte type, int flags, int costs, int sequence, int sourceController, int targetController) {
+		byte[] data = new byte[LENGTH];
+		write(data, 0, type, flags, costs, sequence, sourceController, targetController);
+		return data;
+	}
+
+	/**
+	 * write a header in place, e.g. in front of a payload already in the
+	 * buffer
+	 */
+	public static void write(byte[] data, int offset, byte type, int flags, int costs, int sequence, int sourceController, int targetController) {
+		data[offset] = MAGIC;
+		data[offset + OFFSET_VERSION] = VERSION;
+		data[offset + OFFSET_TYPE] = type;
+		data[offset + OFFSET_FLAGS] = (byte) flags;
+		putInt(data, offset + OFFSET_COSTS, costs);
+		putInt(data, offset + OFFSET_SEQUENCE, sequence);
+		putShort(data, offset + OFFSET_SOURCE, sourceController);
+		putShort(data, offset + OFFSET_TARGET, targetController);
+	}
+
+	/**
+	 * @return true if the data starts with a binary header, false for the
+	 *         old key/value text format
+	 */
+	public static boolean isBinary(byte[] data, int offset) {
+		return isBinary(data, offset, data.length - offset);
+	}
+
+	public static boolean isBinary(byte[] data, int offset, int length) {
+		return length >= LENGTH && data[offset] == MAGIC && data[offset + OFFSET_VERSION] >= 1;
+	}
+
+	public static byte getType(byte[] data, int offset) {
+		return data[offset + OFFSET_TYPE];
+	}
+
+	public static int getFlags(byte[] data, int offset) {
+		return data[offset + OFFSET_FLAGS] & 0xff;
+	}
+
+	public static int getCosts(byte[] data, int offset) {
+		return getInt(data, offset + OFFSET_COSTS);
+	}
+
+	public static int getSequence(byte[] data, int offset) {
+		return getInt(data, offset + OFFSET_SEQUENCE);
+	}
+
+	public static int getSourceController(byte[] data, int offset) {
+		return getShort(data, offset + OFFSET_SOURCE);
+	}
+
+	public static int getTargetController(byte[] data, int offset) {
+		return getShort(data, offset + OFFSET_TARGET);
+	}
+
+	public static void putInt(byte[] data, int offset, int value) {
+		data[offset] = (byte) (value >>> 24);
+		data[offset + 1] = (byte) (value >>> 16);
+		data[offset + 2] = (byte) (value >>> 8);
+		data[offset + 3] = (byte) value;
+	}
+
+	public static void putLong(byte[] data, int offset, long value) {
+		putInt(data, offset, (int) (value >>> 32));
+		putInt(data, offset + 4, (int) value);
+	}
+
+	public static void putShort(byte[] data, int offset, int value) {
+		data[offset] = (byte) (value >>> 8);
+		data[offset + 1] = (byte) value;
+	}
+
+	public static int getInt(byte[] data, int offset) {
+		return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16 | (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+	}
+
+	public static long getLong(byte[] data, int offset) {
+		return (long) getInt(data, offset) << 32 | (getInt(data, offset + 4) & 0xffffffffL);
+	}
+
+	public static int getShort(byte[] data, int offset) {
+		return (data[offset] & 0xff) << 8 | (data[offset + 1] & 0xff);
+	}
+}
@@ -24,6 +24,31 @@ package de.tud.kom.inband.util;
 
 public class ControlMessageParser {
 
+	/**
+	 * Read the costs of a discovery or activation payload, either from the
+	 * binary {@link ControlHeader} or from the old text format.
+	 */
+	public static int getCosts(byte[] data, int offset, int length) {
+		if (ControlHeader.isBinary(data, offset, length))
+		{
+			return ControlHeader.getCosts(data, offset);
+		}
+		return Integer.parseInt(getValue(new String(data, offset, length), "costs"));
+	}
+
+	/**
+	 * Read the sequence number of a discovery, 0 if the sender did not set
+	 * one.
+	 */
+	public static int getSequence(byte[] data, int offset, int length) {
+		if (ControlHeader.isBinary(data, offset, length))
+		{
+			return ControlHeader.getSequence(data, offset);
+		}
+		String sequence = getValue(new String(data, offset, length), "sequence");
+		return sequence != null ? Integer.parseInt(sequence) : 0;
+	}
+
 	public static String getValue(String data, String key){
 		String[] parts = data.split(",");
 		for (String part : parts)
@@ -29,13 +29,27 @@ import net.floodlightcontroller.core.IOFSwitch;
 public class ControllerConnection {
 	IOFSwitch switch_;
 	OFPort port;
-	int costs;
+	/* ranking costs: the hops, plus the measured round-trip time if known */
+	volatile int costs;
+	/* costs announced by the discovery */
+	volatile int hops;
+	/* moving average of the probed round-trip time in milliseconds, negative if unknown */
+	volatile double rttMillis = -1;
+	/* extra costs while the egress port is congested */
+	volatile int loadCosts;
+	/* insertion order, breaks ties between equal costs */
+	long order;
+	/* an activation has been sent, so the path to the controller is set up */
+	volatile boolean activated;
+	/* last time anything was sent on this connection, in milliseconds */
+	volatile long lastSent;
 
 	public ControllerConnection(IOFSwitch switch_, OFPort port, int costs) {
 		super();
 		this.switch_ = switch_;
 		this.port = port;
 		this.costs = costs;
+		this.hops = costs;
 	}
 
 	public IOFSwitch getSwitch() {
@@ -62,4 +76,44 @@ public class ControllerConnection {
 		this.costs = costs;
 	}
 
+	public int getHops() {
+		return hops;
+	}
+
+	public void setHops(int hops) {
+		this.hops = hops;
+	}
+
+	public double getRttMillis() {
+		return rttMillis;
+	}
+
+	public void setRttMillis(double rttMillis) {
+		this.rttMillis = rttMillis;
+	}
+
+	public int getLoadCosts() {
+		return loadCosts;
+	}
+
+	public void setLoadCosts(int loadCosts) {
+		this.loadCosts = loadCosts;
+	}
+
+	public boolean isActivated() {
+		return activated;
+	}
+
+	public void setActivated(boolean activated) {
+		this.activated = activated;
+	}
+
+	public long getLastSent() {
+		return lastSent;
+	}
+
+	public void setLastSent(long lastSent) {
+		this.lastSent = lastSent;
+	}
+
 }
\ No newline at end of file
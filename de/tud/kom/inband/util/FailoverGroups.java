@@ -0,0 +1,299 @@
+/**
+    Licensed to the Apache Software Foundation (ASF) under one
+    or more contributor license agreements.  See the NOTICE file
+    distributed with this work for additional information
+    regarding copyright ownership.  The ASF licenses this file
+    to you under the Apache License, Version 2.0 (the
+    "License"); you may not use this file except in compliance
+    with the License.  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on an
+    "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied.  See the License for the
+    specific language governing permissions and limitations
+    under the License.
+    
+    
+    @author Rhaban Hark
+**/
+
+package de.tud.kom.inband.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import org.projectfloodlight.openflow.protocol.OFBarrierReply;
+import org.projectfloodlight.openflow.types.OFGroup;
+import org.projectfloodlight.openflow.types.OFPort;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * Reference-counted fast-failover groups, one per (switch, primary port,
+ * backup port). Every use, i.e. a group protecting one pair of connections,
+ * is recorded once together with the fork rules handing messages to the
+ * group.
+ * 
+ * When one of the connections is withdrawn the fork rules are first
+ * rewritten to a plain output on the surviving branch. Deleting a group also
+ * removes the flows pointing to it, so the group is only deleted with its
+ * last use and after the switch confirmed the rewritten rules with a barrier
+ * reply. Its id is reused afterwards.
+ */
+public class FailoverGroups {
+
+	/* keep clear of group ids other modules tend to use */
+	private static final int FIRST_GROUP_ID = 0x1b000000;
+
+	/* the group delete only needs to follow the barrier reply */
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private static final class GroupKey {
+		final long dpid;
+		final int primaryPort;
+		final int backupPort;
+
+		GroupKey(IOFSwitch sw, OFPort primaryPort, OFPort backupPort) {
+			this.dpid = sw.getId().getLong();
+			this.primaryPort = primaryPort.getPortNumber();
+			this.backupPort = backupPort.getPortNumber();
+		}
+
+		@Override
+		public int hashCode() {
+			return (31 * Long.hashCode(dpid) + primaryPort) * 31 + backupPort;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof GroupKey))
+				return false;
+			GroupKey other = (GroupKey) obj;
+			return dpid == other.dpid && primaryPort == other.primaryPort && backupPort == other.backupPort;
+		}
+	}
+
+	private static class Group {
+		final IOFSwitch sw;
+		final OFGroup group;
+		final OFPort primaryPort;
+		final OFPort backupPort;
+		/* uses of the group */
+		int references;
+
+		Group(IOFSwitch sw, OFGroup group, OFPort primaryPort, OFPort backupPort) {
+			this.sw = sw;
+			this.group = group;
+			this.primaryPort = primaryPort;
+			this.backupPort = backupPort;
+		}
+	}
+
+	/*
+	 * rule on the fork switch handing the messages of a source to the group
+	 */
+	private static final class Fork {
+		final int sourceController;
+		final OFPort inPort;
+		final int targetController;
+
+		Fork(int sourceController, OFPort inPort, int targetController) {
+			this.sourceController = sourceController;
+			this.inPort = inPort;
+			this.targetController = targetController;
+		}
+
+		@Override
+		public int hashCode() {
+			return (31 * sourceController + inPort.getPortNumber()) * 31 + targetController;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Fork))
+				return false;
+			Fork other = (Fork) obj;
+			return sourceController == other.sourceController && inPort.getPortNumber() == other.inPort.getPortNumber()
+					&& targetController == other.targetController;
+		}
+	}
+
+	private static final class UseKey {
+		final GroupKey group;
+		final SwitchPort primaryConnection;
+		final SwitchPort backupConnection;
+
+		UseKey(GroupKey group, SwitchPort primaryConnection, SwitchPort backupConnection) {
+			this.group = group;
+			this.primaryConnection = primaryConnection;
+			this.backupConnection = backupConnection;
+		}
+
+		@Override
+		public int hashCode() {
+			return (31 * group.hashCode() + primaryConnection.hashCode()) * 31 + backupConnection.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof UseKey))
+				return false;
+			UseKey other = (UseKey) obj;
+			return group.equals(other.group) && primaryConnection.equals(other.primaryConnection)
+					&& backupConnection.equals(other.backupConnection);
+		}
+	}
+
+	private static class Use {
+		final UseKey key;
+		final Set<Fork> forks = new HashSet<>();
+
+		Use(UseKey key) {
+			this.key = key;
+		}
+	}
+
+	private Map<GroupKey, Group> groups = new HashMap<>();
+	private Map<UseKey, Use> uses = new HashMap<>();
+	/* uses by the connections they protect */
+	private Map<SwitchPort, Set<Use>> usesByConnection = new HashMap<>();
+	private Map<Long, Integer> nextGroupId = new HashMap<>();
+	/* ids of deleted groups, per switch */
+	private Map<Long, Deque<Integer>> freeGroupIds = new HashMap<>();
+
+	/**
+	 * Get the group for the port pair, installing it if it does not exist
+	 * yet, and record the fork rule using it.
+	 * 
+	 * @param primaryConnection
+	 *            connection to the target controller the primary path leads to
+	 * @param backupConnection
+	 *            connection the backup path leads to
+	 */
+	public synchronized OFGroup acquire(IOFSwitch sw, OFPort primaryPort, OFPort backupPort, SwitchPort primaryConnection,
+			SwitchPort backupConnection, int sourceController, OFPort inPort, int targetController) {
+		GroupKey key = new GroupKey(sw, primaryPort, backupPort);
+		Group group = this.groups.get(key);
+		if (group == null)
+		{
+			group = new Group(sw, OFGroup.of(allocateGroupId(sw.getId().getLong())), primaryPort, backupPort);
+			sw.write(OFMessageBuilder.groupAddFastFailover(sw, group.group, primaryPort, backupPort));
+			this.groups.put(key, group);
+		}
+		UseKey useKey = new UseKey(key, primaryConnection, backupConnection);
+		Use use = this.uses.get(useKey);
+		if (use == null)
+		{
+			use = new Use(useKey);
+			this.uses.put(useKey, use);
+			group.references++;
+			record(primaryConnection, use);
+			record(backupConnection, use);
+		}
+		use.forks.add(new Fork(sourceController, inPort, targetController));
+		return group.group;
+	}
+
+	/**
+	 * Release all groups protecting a connection which has been withdrawn.
+	 * The fork rules are moved to the surviving branch before a group is
+	 * deleted.
+	 */
+	public synchronized void releaseConnection(SwitchPort connection) {
+		Set<Use> set = this.usesByConnection.remove(connection);
+		if (set == null)
+		{
+			return;
+		}
+		for (Use use : set)
+		{
+			this.uses.remove(use.key);
+			boolean primaryWithdrawn = connection.equals(use.key.primaryConnection);
+			SwitchPort other = primaryWithdrawn ? use.key.backupConnection : use.key.primaryConnection;
+			Set<Use> otherSet = this.usesByConnection.get(other);
+			if (otherSet != null)
+			{
+				otherSet.remove(use);
+				if (otherSet.isEmpty())
+					this.usesByConnection.remove(other);
+			}
+			Group group = this.groups.get(use.key.group);
+			if (group == null)
+				continue;
+			OFPort surviving = primaryWithdrawn ? group.backupPort : group.primaryPort;
+			for (Fork fork : use.forks)
+			{
+				FlowRuleRegistry.get().install(group.sw, OFMessageBuilder.flowModIntermediateControllerPath(fork.sourceController, fork.inPort,
+						fork.targetController, group.sw, surviving), surviving);
+			}
+			if (--group.references == 0)
+			{
+				this.groups.remove(use.key.group);
+				deleteAfterBarrier(group);
+			}
+		}
+	}
+
+	/*
+	 * the rules pointing to the group have been replaced, delete it once the
+	 * switch confirmed them
+	 */
+	private void deleteAfterBarrier(final Group group) {
+		final ListenableFuture<OFBarrierReply> barrier = group.sw.writeRequest(group.sw.getOFFactory().buildBarrierRequest().build());
+		barrier.addListener(new Runnable() {
+			@Override
+			public void run() {
+				// without barrier reply the switch is gone and the group with it
+				group.sw.write(OFMessageBuilder.groupDelete(group.sw, group.group));
+				releaseGroupId(group.sw.getId().getLong(), group.group.getGroupNumber());
+			}
+		}, DIRECT);
+	}
+
+	private int allocateGroupId(long dpid) {
+		Deque<Integer> free = this.freeGroupIds.get(dpid);
+		if (free != null && !free.isEmpty())
+		{
+			return free.poll();
+		}
+		Integer id = this.nextGroupId.get(dpid);
+		id = id == null ? FIRST_GROUP_ID : id;
+		this.nextGroupId.put(dpid, id + 1);
+		return id;
+	}
+
+	private synchronized void releaseGroupId(long dpid, int id) {
+		Deque<Integer> free = this.freeGroupIds.get(dpid);
+		if (free == null)
+		{
+			free = new ArrayDeque<>();
+			this.freeGroupIds.put(dpid, free);
+		}
+		free.add(id);
+	}
+
+	private void record(SwitchPort connection, Use use) {
+		Set<Use> set = this.usesByConnection.get(connection);
+		if (set == null)
+		{
+			set = new HashSet<>();
+			this.usesByConnection.put(connection, set);
+		}
+		set.add(use);
+	}
+}
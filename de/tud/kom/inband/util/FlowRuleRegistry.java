@@ -0,0 +1,371 @@
+/**
+    Licensed to the Apache Software Foundation (ASF) under one
+    or more contributor license agreements.  See the NOTICE file
+    distributed with this work for additional information
+    regarding copyright ownership.  The ASF licenses this file
+    to you under the Apache License, Version 2.0 (the
+    "License"); you may not use this file except in compliance
+    with the License.  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on an
+    "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied.  See the License for the
+    specific language governing permissions and limitations
+    under the License.
+    
+    
+    @author Rhaban Hark
+**/
+
+
+package de.tud.kom.inband.util;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.projectfloodlight.openflow.protocol.OFFlowAdd;
+import org.projectfloodlight.openflow.protocol.OFFlowRemoved;
+import org.projectfloodlight.openflow.protocol.OFVersion;
+import org.projectfloodlight.openflow.protocol.match.Match;
+import org.projectfloodlight.openflow.protocol.match.MatchField;
+import org.projectfloodlight.openflow.types.OFPort;
+import org.projectfloodlight.openflow.types.TransportPort;
+
+import de.tud.kom.inband.eval.EvalCollector;
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * Registry of the in-band rules installed by this controller (last hops and
+ * intermediate hops of controller paths).
+ * 
+ * The rules idle out instead of being refreshed. Their FLOW_REMOVED messages
+ * only mark them as expired; the next message which would have used an
+ * expired rule is sent to this controller by the switch, which reinstalls
+ * the rule and forwards the message itself. A rule which is needed again
+ * shortly after it expired gets a longer idle timeout and is considered hot:
+ * hot rules are reinstalled right away when they expire after carrying
+ * traffic. A rule which has not been needed for a long time falls back to
+ * the default idle timeout.
+ * 
+ * The registry doubles as cache of the rules on the switches: installing a
+ * rule which is already there with the same match, priority and actions is
+ * skipped. Entries are dropped when the switch disconnects or one of the
+ * ports of the rule goes down.
+ * 
+ * Changes are synchronized; looking up the rule of a received message is
+ * not, only reinstalling an expired rule takes the lock.
+ */
+public class FlowRuleRegistry {
+
+	/* source of last hop rules, which match on the target only */
+	private static final int ANY_SOURCE = -1;
+	/* in port of aggregated rules */
+	private static final int ANY_PORT = -1;
+	public static final int MAX_IDLE_TIMEOUT = 60;
+
+	private static FlowRuleRegistry instance = new FlowRuleRegistry();
+
+	private static final class RuleKey {
+		final long dpid;
+		final int inPort;
+		final int source;
+		final int target;
+
+		RuleKey(long dpid, int inPort, int source, int target) {
+			this.dpid = dpid;
+			this.inPort = inPort;
+			this.source = source;
+			this.target = target;
+		}
+
+		@Override
+		public int hashCode() {
+			return ((31 * Long.hashCode(dpid) + inPort) * 31 + source) * 31 + target;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof RuleKey))
+				return false;
+			RuleKey other = (RuleKey) obj;
+			return dpid == other.dpid && inPort == other.inPort && source == other.source && target == other.target;
+		}
+	}
+
+	private static final class Rule {
+		IOFSwitch sw;
+		OFFlowAdd flowAdd;
+		/* where matching messages leave the switch, CONTROLLER for last hops */
+		volatile OFPort outPort;
+		volatile boolean installed;
+		/* false while a batch waits for the barrier reply confirming the rule */
+		boolean confirmed;
+		int idleTimeout = OFMessageBuilder.IDLE_TIMEOUT;
+		long removedAt;
+		boolean hot;
+	}
+
+	private Map<RuleKey, Rule> rules;
+	private long cacheHits;
+	private long cacheMisses;
+
+	private FlowRuleRegistry() {
+		this.rules = new ConcurrentHashMap<>();
+	}
+
+	public static FlowRuleRegistry get() {
+		return instance;
+	}
+
+	private static RuleKey keyOf(IOFSwitch sw, Match match) {
+		OFPort inPort = match.get(MatchField.IN_PORT);
+		TransportPort source = match.get(MatchField.UDP_SRC);
+		TransportPort target = match.get(MatchField.UDP_DST);
+		if (target == null)
+			return null;
+		return new RuleKey(sw.getId().getLong(), inPort != null ? inPort.getPortNumber() : ANY_PORT, source != null ? source.getPort() : ANY_SOURCE, target.getPort());
+	}
+
+	/**
+	 * install the rule and keep it for reinstalling
+	 * 
+	 * @param outPort
+	 *            where messages matching the rule leave the switch
+	 */
+	public boolean install(IOFSwitch sw, OFFlowAdd flowAdd, OFPort outPort) {
+		OFFlowAdd toWrite = prepare(sw, flowAdd, outPort, true);
+		if (toWrite == null)
+		{
+			return true;
+		}
+		if (!sw.write(toWrite))
+		{
+			forget(sw, Collections.singletonList(flowAdd));
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Register the rule as installed without writing it. Unconfirmed rules
+	 * are no cache hits, so a path is never taken for installed before a
+	 * barrier reply confirmed it.
+	 * 
+	 * @param confirmed
+	 *            false if the caller confirms the rule after the barrier reply
+	 *            (see {@link #confirm}) or forgets it on failure
+	 * @return the flow mod to write or null if the rule is already installed
+	 */
+	public synchronized OFFlowAdd prepare(IOFSwitch sw, OFFlowAdd flowAdd, OFPort outPort, boolean confirmed) {
+		RuleKey key = keyOf(sw, flowAdd.getMatch());
+		if (key == null)
+		{
+			return flowAdd;
+		}
+		Rule rule = this.rules.get(key);
+		if (rule == null)
+		{
+			rule = new Rule();
+			this.rules.put(key, rule);
+		}
+		else if (rule.installed && rule.confirmed && rule.sw == sw && sameRule(rule.flowAdd, flowAdd))
+		{
+			this.cacheHits++;
+			EvalCollector.get().incrementRuleCacheHits();
+			return null;
+		}
+		this.cacheMisses++;
+		EvalCollector.get().incrementRuleCacheMisses();
+		rule.sw = sw;
+		rule.flowAdd = flowAdd;
+		rule.outPort = outPort;
+		EvalCollector.get().incrementRules();
+		OFFlowAdd toWrite = installed(rule);
+		rule.confirmed = confirmed;
+		return toWrite;
+	}
+
+	/**
+	 * the switch confirmed the prepared rules with a barrier reply
+	 */
+	public synchronized void confirm(IOFSwitch sw, List<OFFlowAdd> flowAdds) {
+		for (OFFlowAdd flowAdd : flowAdds)
+		{
+			Rule rule = this.rules.get(keyOf(sw, flowAdd.getMatch()));
+			// unless replaced in the meantime
+			if (rule != null && rule.sw == sw && rule.flowAdd == flowAdd)
+			{
+				rule.confirmed = true;
+			}
+		}
+	}
+
+	/**
+	 * writing the prepared rules or the barrier failed, they are written
+	 * again next time
+	 */
+	public synchronized void forget(IOFSwitch sw, List<OFFlowAdd> flowAdds) {
+		for (OFFlowAdd flowAdd : flowAdds)
+		{
+			Rule rule = this.rules.get(keyOf(sw, flowAdd.getMatch()));
+			if (rule != null && rule.sw == sw && rule.flowAdd == flowAdd)
+			{
+				rule.installed = false;
+			}
+		}
+	}
+
+	/* idle timeouts are left out, they are managed here */
+	private static boolean sameRule(OFFlowAdd installed, OFFlowAdd flowAdd) {
+		if (installed.getVersion() != flowAdd.getVersion() || installed.getPriority() != flowAdd.getPriority()
+				|| !installed.getMatch().equals(flowAdd.getMatch()))
+			return false;
+		if (flowAdd.getVersion() == OFVersion.OF_10)
+			return installed.getActions().equals(flowAdd.getActions());
+		return installed.getInstructions().equals(flowAdd.getInstructions());
+	}
+
+	/* mark the rule installed, returns its flow mod with the current idle timeout */
+	private static OFFlowAdd installed(Rule rule) {
+		OFFlowAdd flowAdd = rule.flowAdd;
+		if (flowAdd.getIdleTimeout() != rule.idleTimeout)
+		{
+			flowAdd = flowAdd.createBuilder().setIdleTimeout(rule.idleTimeout).build();
+		}
+		rule.installed = true;
+		rule.confirmed = true;
+		return flowAdd;
+	}
+
+	private static boolean write(Rule rule) {
+		return rule.sw.write(installed(rule));
+	}
+
+	/**
+	 * mark an expired rule, hot rules which carried traffic are reinstalled
+	 * right away
+	 */
+	public synchronized void onFlowRemoved(IOFSwitch sw, OFFlowRemoved removed) {
+		RuleKey key = keyOf(sw, removed.getMatch());
+		Rule rule = key != null ? this.rules.get(key) : null;
+		if (rule == null)
+		{
+			return;
+		}
+		switch (removed.getReason()) {
+		case IDLE_TIMEOUT:
+		case HARD_TIMEOUT:
+			EvalCollector.get().incrementRuleExpirations();
+			rule.installed = false;
+			rule.removedAt = System.currentTimeMillis();
+			if (rule.hot && removed.getPacketCount().getValue() > 0)
+			{
+				EvalCollector.get().incrementRuleReinstalls();
+				write(rule);
+			}
+			else
+			{
+				rule.hot = false;
+			}
+			break;
+		default:
+			// deleted on purpose, e.g. together with its failover group
+			this.rules.remove(key);
+			break;
+		}
+	}
+
+	/**
+	 * forget the rules of a disconnected switch
+	 */
+	public synchronized void switchRemoved(long dpid) {
+		Iterator<RuleKey> it = this.rules.keySet().iterator();
+		while (it.hasNext())
+		{
+			if (it.next().dpid == dpid)
+			{
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * forget the rules receiving from or forwarding to a port which went down
+	 */
+	public synchronized void portDown(long dpid, OFPort port) {
+		Iterator<Map.Entry<RuleKey, Rule>> it = this.rules.entrySet().iterator();
+		while (it.hasNext())
+		{
+			Map.Entry<RuleKey, Rule> entry = it.next();
+			if (entry.getKey().dpid == dpid
+					&& (entry.getKey().inPort == port.getPortNumber() || entry.getValue().outPort.getPortNumber() == port.getPortNumber()))
+			{
+				it.remove();
+			}
+		}
+	}
+
+	public synchronized long getCacheHits() {
+		return this.cacheHits;
+	}
+
+	public synchronized long getCacheMisses() {
+		return this.cacheMisses;
+	}
+
+	/**
+	 * reinstall the rule a message was sent to this controller for, because
+	 * it has expired
+	 * 
+	 * @return the port the message has to be forwarded to (CONTROLLER if it
+	 *         has arrived at its last hop) or null if there is no such rule
+	 */
+	public OFPort reinstall(IOFSwitch sw, OFPort inPort, int source, int target) {
+		long dpid = sw.getId().getLong();
+		Rule rule = this.rules.get(new RuleKey(dpid, inPort.getPortNumber(), source, target));
+		if (rule == null)
+		{
+			rule = this.rules.get(new RuleKey(dpid, inPort.getPortNumber(), ANY_SOURCE, target));
+		}
+		if (rule == null)
+		{
+			rule = this.rules.get(new RuleKey(dpid, ANY_PORT, ANY_SOURCE, target));
+		}
+		if (rule == null)
+		{
+			return null;
+		}
+		// the common case, e.g. every message at its last hop
+		if (rule.installed)
+		{
+			return rule.outPort;
+		}
+		return reinstallExpired(rule);
+	}
+
+	private synchronized OFPort reinstallExpired(Rule rule) {
+		if (!rule.installed)
+		{
+			long gap = System.currentTimeMillis() - rule.removedAt;
+			if (gap < rule.idleTimeout * 1000L)
+			{
+				// expired too early
+				rule.idleTimeout = Math.min(rule.idleTimeout * 2, MAX_IDLE_TIMEOUT);
+				rule.hot = true;
+			}
+			else if (gap > rule.idleTimeout * 4000L)
+			{
+				rule.idleTimeout = OFMessageBuilder.IDLE_TIMEOUT;
+			}
+			EvalCollector.get().incrementRuleReinstalls();
+			write(rule);
+		}
+		return rule.outPort;
+	}
+}
@@ -0,0 +1,135 @@
+/**
+    Licensed to the Apache Software Foundation (ASF) under one
+    or more contributor license agreements.  See the NOTICE file
+    distributed with this work for additional information
+    regarding copyright ownership.  The ASF licenses this file
+    to you under the Apache License, Version 2.0 (the
+    "License"); you may not use this file except in compliance
+    with the License.  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on an
+    "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied.  See the License for the
+    specific language governing permissions and limitations
+    under the License.
+    
+    
+    @author Rhaban Hark
+**/
+
+package de.tud.kom.inband.util;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timer wheel for many coarse timeouts. Adding and cancelling a
+ * timeout is O(1), each tick only looks at one bucket. Tasks run on the
+ * thread driving the wheel and should be short.
+ */
+public class HashedTimerWheel implements Runnable {
+
+	public static final class Timeout {
+		final long deadline;
+		final Runnable task;
+		volatile boolean cancelled;
+
+		Timeout(long deadline, Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		public void cancel() {
+			this.cancelled = true;
+		}
+	}
+
+	private long tickMillis;
+	private Queue<Timeout>[] buckets;
+	private int mask;
+	private volatile long tick;
+	/* added by other threads, moved into the buckets by the next tick */
+	private Queue<Timeout> added;
+	private ScheduledFuture<?> future;
+
+	/**
+	 * @param wheelSize
+	 *            number of buckets, rounded up to a power of two
+	 */
+	@SuppressWarnings("unchecked")
+	public HashedTimerWheel(long tickMillis, int wheelSize) {
+		int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+		this.tickMillis = tickMillis;
+		this.buckets = new Queue[size];
+		for (int i = 0; i < size; i++)
+		{
+			this.buckets[i] = new ArrayDeque<>();
+		}
+		this.mask = size - 1;
+		this.added = new ConcurrentLinkedQueue<>();
+	}
+
+	public void start(ScheduledExecutorService executor) {
+		this.future = executor.scheduleAtFixedRate(this, this.tickMillis, this.tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public void stop() {
+		if (this.future != null)
+		{
+			this.future.cancel(false);
+		}
+	}
+
+	/**
+	 * run the task once the delay has passed, at a resolution of one tick
+	 */
+	public Timeout newTimeout(Runnable task, long delayMillis) {
+		long ticks = Math.max(1, (delayMillis + this.tickMillis - 1) / this.tickMillis);
+		Timeout timeout = new Timeout(this.tick + ticks, task);
+		this.added.add(timeout);
+		return timeout;
+	}
+
+	@Override
+	public void run() {
+		long current = this.tick + 1;
+		Timeout timeout;
+		while ((timeout = this.added.poll()) != null)
+		{
+			if (!timeout.cancelled)
+			{
+				this.buckets[(int) (Math.max(timeout.deadline, current) & this.mask)].add(timeout);
+			}
+		}
+		Queue<Timeout> bucket = this.buckets[(int) (current & this.mask)];
+		for (Iterator<Timeout> i = bucket.iterator(); i.hasNext();)
+		{
+			timeout = i.next();
+			if (timeout.cancelled)
+			{
+				i.remove();
+			}
+			// later rounds stay in the bucket
+			else if (timeout.deadline <= current)
+			{
+				i.remove();
+				try
+				{
+					timeout.task.run();
+				} catch (RuntimeException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+		this.tick = current;
+	}
+}
@@ -0,0 +1,113 @@
+/**
+    Licensed to the Apache Software Foundation (ASF) under one
+    or more contributor license agreements.  See the NOTICE file
+    distributed with this work for additional information
+    regarding copyright ownership.  The ASF licenses this file
+    to you under the Apache License, Version 2.0 (the
+    "License"); you may not use this file except in compliance
+    with the License.  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on an
+    "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied.  See the License for the
+    specific language governing permissions and limitations
+    under the License.
+    
+    
+    @author Rhaban Hark
+**/
+
+
+package de.tud.kom.inband.util;
+
+import org.projectfloodlight.openflow.types.MacAddress;
+
+/**
+ * Fields of an in-band packet read straight from the raw packet-in data:
+ * Ethernet with one VLAN tag, IPv4 and UDP. Packets of any other layout are
+ * not in-band packets.
+ */
+public class InbandFrame {
+
+	private static final int ETH_TYPE_OFFSET = 12;
+	private static final int VLAN_OFFSET = 14;
+	private static final int ETH_TYPE_VLAN = 0x8100;
+	private static final int ETH_TYPE_IPV4 = 0x0800;
+	private static final int IP_PROTO_UDP = 17;
+
+	private final byte[] data;
+	private final int vlan;
+	private final int udpOffset;
+
+	private InbandFrame(byte[] data, int vlan, int udpOffset) {
+		this.data = data;
+		this.vlan = vlan;
+		this.udpOffset = udpOffset;
+	}
+
+	/**
+	 * check the VLAN of the packet without parsing anything else
+	 */
+	public static boolean hasInbandVlan(byte[] data) {
+		if (data == null || data.length < PacketTemplates.IPV4_OFFSET || ControlHeader.getShort(data, ETH_TYPE_OFFSET) != ETH_TYPE_VLAN)
+			return false;
+		int vlan = ControlHeader.getShort(data, VLAN_OFFSET) & 0xfff;
+		return vlan == OFMessageBuilder.OF_VLAN_DISCOVERY.getVlan() || vlan == OFMessageBuilder.OF_VLAN_COMMUNICATION.getVlan();
+	}
+
+	/**
+	 * @return the frame or null if the packet is no in-band packet
+	 */
+	public static InbandFrame parse(byte[] data) {
+		if (!hasInbandVlan(data) || ControlHeader.getShort(data, VLAN_OFFSET + 2) != ETH_TYPE_IPV4)
+			return null;
+		int ipOffset = PacketTemplates.IPV4_OFFSET;
+		int headerLength = (data[ipOffset] & 0x0f) * 4;
+		int udpOffset = ipOffset + headerLength;
+		if (headerLength < 20 || data.length < udpOffset + 8 || (data[ipOffset + 9] & 0xff) != IP_PROTO_UDP)
+			return null;
+		int udpLength = ControlHeader.getShort(data, udpOffset + 4);
+		if (udpLength < 8 || data.length < udpOffset + udpLength)
+			return null;
+		return new InbandFrame(data, ControlHeader.getShort(data, VLAN_OFFSET) & 0xfff, udpOffset);
+	}
+
+	public int getVlan() {
+		return this.vlan;
+	}
+
+	public boolean hasSourceMac(MacAddress mac) {
+		long source = (long) ControlHeader.getShort(this.data, 6) << 32 | (ControlHeader.getInt(this.data, 8) & 0xffffffffL);
+		return source == mac.getLong();
+	}
+
+	/* the discovering switch for discoveries */
+	public int getSourceAddress() {
+		return ControlHeader.getInt(this.data, PacketTemplates.IPV4_OFFSET + 12);
+	}
+
+	public int getSourceController() {
+		return ControlHeader.getShort(this.data, this.udpOffset);
+	}
+
+	public int getTargetController() {
+		return ControlHeader.getShort(this.data, this.udpOffset + 2);
+	}
+
+	/* the UDP payload is not copied, it starts at this offset of getData() */
+	public int getPayloadOffset() {
+		return this.udpOffset + 8;
+	}
+
+	public int getPayloadLength() {
+		return ControlHeader.getShort(this.data, this.udpOffset + 4) - 8;
+	}
+
+	/* the complete packet, e.g. for forwarding it */
+	public byte[] getData() {
+		return this.data;
+	}
+}
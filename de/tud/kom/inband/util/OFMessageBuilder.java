@@ -22,24 +22,39 @@
 
 package de.tud.kom.inband.util;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
 
+import org.projectfloodlight.openflow.protocol.OFBucket;
 import org.projectfloodlight.openflow.protocol.OFFactory;
 import org.projectfloodlight.openflow.protocol.OFFlowAdd;
 import org.projectfloodlight.openflow.protocol.OFFlowModFlags;
+import org.projectfloodlight.openflow.protocol.OFGroupAdd;
+import org.projectfloodlight.openflow.protocol.OFGroupDelete;
+import org.projectfloodlight.openflow.protocol.OFGroupType;
+import org.projectfloodlight.openflow.protocol.OFMeterFlags;
+import org.projectfloodlight.openflow.protocol.OFMeterMod;
+import org.projectfloodlight.openflow.protocol.OFMeterModCommand;
+import org.projectfloodlight.openflow.protocol.OFPacketIn;
 import org.projectfloodlight.openflow.protocol.OFPacketOut;
+import org.projectfloodlight.openflow.protocol.OFVersion;
 import org.projectfloodlight.openflow.protocol.action.OFAction;
 import org.projectfloodlight.openflow.protocol.instruction.OFInstruction;
 import org.projectfloodlight.openflow.protocol.match.Match;
 import org.projectfloodlight.openflow.protocol.match.MatchField;
+import org.projectfloodlight.openflow.protocol.meterband.OFMeterBand;
 import org.projectfloodlight.openflow.types.EthType;
 import org.projectfloodlight.openflow.types.IPv4Address;
 import org.projectfloodlight.openflow.types.IpProtocol;
 import org.projectfloodlight.openflow.types.MacAddress;
+import org.projectfloodlight.openflow.types.OFGroup;
 import org.projectfloodlight.openflow.types.OFPort;
 import org.projectfloodlight.openflow.types.OFVlanVidMatch;
+import org.projectfloodlight.openflow.types.TableId;
 import org.projectfloodlight.openflow.types.TransportPort;
+import org.projectfloodlight.openflow.types.U64;
 
 import com.google.common.collect.ImmutableSet;
 
@@ -55,36 +70,223 @@ public class OFMessageBuilder {
 	public static final OFVlanVidMatch OF_VLAN_COMMUNICATION = OFVlanVidMatch.ofVlan(1002);
 	private static final int FLOW_PRIORITY_DEFAULT = 0xfff;
 	private static final int FLOW_PRIORITY_HIGH = 0xfff1;
+	/* below the exact rules, so these take precedence where both exist */
+	private static final int FLOW_PRIORITY_AGGREGATED = 0xfff0;
 	private static final ImmutableSet<OFFlowModFlags> FLOW_FLAGS_DEFAULT = ImmutableSet.<OFFlowModFlags>of(OFFlowModFlags.SEND_FLOW_REM,
 			OFFlowModFlags.CHECK_OVERLAP);
 	public static final MacAddress DISCOVERY_MAC = MacAddress.of("00:00:00:00:01:f0");
 	public static final MacAddress ACTIVATE_MAC = MacAddress.of("00:00:00:00:01:f1");
 	public static final int IDLE_TIMEOUT = 5;
+	/* enough for the headers and the control payload of discoveries and activations */
+	public static final int CONTROL_MAX_LEN = 128;
+	public static final long NO_METER = 0;
+	/* keep clear of meter ids other modules tend to use */
+	public static final long DISCOVERY_METER_ID = 0x1b01;
+	public static final long ACTIVATION_METER_ID = 0x1b02;
+
+	/* cookie of all in-band rules: COOKIE_BASE | rule kind */
+	private static final long COOKIE_BASE = 0x1bd0000000000000L;
+	private static final long COOKIE_KIND_MASK = 0xffffL;
+	public static final int RULE_NONE = 0;
+	public static final int RULE_DISCOVERY = 1;
+	public static final int RULE_ACTIVATION = 2;
+	public static final int RULE_LAST_HOP = 3;
+	public static final int RULE_INTERMEDIATE = 4;
+	public static final int RULE_MISS = 5;
+	/* compatibility mode for controllers which only understand the text format */
+	private static volatile boolean textControlFormat = false;
+
+	public static void setTextControlFormat(boolean textControlFormat) {
+		OFMessageBuilder.textControlFormat = textControlFormat;
+	}
+
+	/* table of all in-band rules, 0 shares the first table with other modules */
+	private static volatile int inbandTable = 0;
+
+	public static void setInbandTable(int tableId) {
+		OFMessageBuilder.inbandTable = tableId;
+	}
 
 	public static OFFlowAdd flowModDiscovery(IOFSwitch activeSwitch) {
 		OFFactory factory = activeSwitch.getOFFactory();
+		Match match = factory.buildMatch().setExact(MatchField.VLAN_VID, OF_VLAN_DISCOVERY).build();
+		return flowModToController(activeSwitch, match, FLOW_PRIORITY_DEFAULT, NO_METER, RULE_DISCOVERY);
+	}
+
+	/**
+	 * discovery rule limited by the given meter, requires OpenFlow 1.3
+	 */
+	public static OFFlowAdd flowModDiscovery(IOFSwitch activeSwitch, long meterId) {
+		OFFactory factory = activeSwitch.getOFFactory();
+		Match match = factory.buildMatch().setExact(MatchField.VLAN_VID, OF_VLAN_DISCOVERY).build();
+		return flowModToController(activeSwitch, match, FLOW_PRIORITY_DEFAULT, meterId, RULE_DISCOVERY);
+	}
+
+	/**
+	 * activations (on the discovery VLAN) limited by their own meter, so a
+	 * discovery storm does not starve them, requires OpenFlow 1.3
+	 */
+	public static OFFlowAdd flowModActivation(IOFSwitch activeSwitch, long meterId) {
+		OFFactory factory = activeSwitch.getOFFactory();
+		Match match = factory.buildMatch().setExact(MatchField.VLAN_VID, OF_VLAN_DISCOVERY).setExact(MatchField.ETH_SRC, ACTIVATE_MAC).build();
+		return flowModToController(activeSwitch, match, FLOW_PRIORITY_DEFAULT + 1, meterId, RULE_ACTIVATION);
+	}
+
+	/**
+	 * sends communication messages without path rule to the controller, so
+	 * it can reinstall expired rules
+	 */
+	public static OFFlowAdd flowModCommunicationMiss(IOFSwitch sw) {
+		OFFactory factory = sw.getOFFactory();
 
 		List<OFAction> actions = Collections.singletonList(factory.actions().buildOutput().setPort(OFPort.CONTROLLER).setMaxLen(0xffFFffFF).build());
 		List<OFInstruction> instr = Collections.singletonList(factory.instructions().buildApplyActions().setActions(actions).build());
-		Match match = factory.buildMatch().setExact(MatchField.VLAN_VID, OF_VLAN_DISCOVERY).build();
-		OFFlowAdd flowAdd = factory.buildFlowAdd().setActions(actions).setInstructions(instr).setMatch(match).setIdleTimeout(0).setHardTimeout(0)
-				.setPriority(FLOW_PRIORITY_DEFAULT).setFlags(FLOW_FLAGS_DEFAULT).build();
+		Match match = factory.buildMatch().setExact(MatchField.VLAN_VID, OF_VLAN_COMMUNICATION).build();
+		OFFlowAdd.Builder flowAdd = factory.buildFlowAdd().setActions(actions).setInstructions(instr).setMatch(match).setIdleTimeout(0).setHardTimeout(0)
+				.setPriority(FLOW_PRIORITY_DEFAULT).setFlags(FLOW_FLAGS_DEFAULT);
+		return tag(sw, flowAdd, RULE_MISS);
+	}
+
+	/**
+	 * hands all in-band packets from table 0 to the in-band table, requires
+	 * OpenFlow 1.1
+	 */
+	public static OFFlowAdd flowModGotoInbandTable(IOFSwitch sw, OFVlanVidMatch vlan) {
+		OFFactory factory = sw.getOFFactory();
+
+		List<OFInstruction> instr = Collections.singletonList((OFInstruction) factory.instructions().buildGotoTable().setTableId(TableId.of(inbandTable)).build());
+		Match match = factory.buildMatch().setExact(MatchField.VLAN_VID, vlan).build();
+		OFFlowAdd flowAdd = factory.buildFlowAdd().setInstructions(instr).setMatch(match).setIdleTimeout(0).setHardTimeout(0)
+				.setPriority(FLOW_PRIORITY_HIGH).setCookie(U64.of(COOKIE_BASE)).build();
 		return flowAdd;
 	}
 
+	public static boolean usesInbandTable(IOFSwitch sw) {
+		return inbandTable != 0 && sw.getOFFactory().getVersion() != OFVersion.OF_10;
+	}
+
+	/*
+	 * tag the rule with the in-band cookie for its kind and put it into the
+	 * in-band table
+	 */
+	private static OFFlowAdd tag(IOFSwitch sw, OFFlowAdd.Builder flowAdd, int kind) {
+		flowAdd.setCookie(U64.of(COOKIE_BASE | kind));
+		if (sw.getOFFactory().getVersion() != OFVersion.OF_10)
+		{
+			flowAdd.setTableId(TableId.of(inbandTable));
+		}
+		return flowAdd.build();
+	}
+
+	/**
+	 * @return the kind of the in-band rule which sent the packet to the
+	 *         controller, RULE_NONE for other rules or switches not reporting
+	 *         the cookie (before OpenFlow 1.3)
+	 */
+	public static int getRuleKind(OFPacketIn packetIn) {
+		if (!reportsCookie(packetIn))
+			return RULE_NONE;
+		return getRuleKind(packetIn.getCookie());
+	}
+
+	/**
+	 * @return the kind of the in-band rule with this cookie, RULE_NONE for
+	 *         rules of other modules
+	 */
+	public static int getRuleKind(U64 cookie) {
+		long value = cookie.getValue();
+		if ((value & ~COOKIE_KIND_MASK) != COOKIE_BASE)
+			return RULE_NONE;
+		return (int) (value & COOKIE_KIND_MASK);
+	}
+
+	public static boolean reportsCookie(OFPacketIn packetIn) {
+		return packetIn.getVersion().compareTo(OFVersion.OF_13) >= 0;
+	}
+
+	/*
+	 * permanent rule sending the headers and the control payload of matching
+	 * packets to the controller
+	 */
+	private static OFFlowAdd flowModToController(IOFSwitch sw, Match match, int priority, long meterId, int kind) {
+		OFFactory factory = sw.getOFFactory();
+
+		List<OFAction> actions = Collections.singletonList(factory.actions().buildOutput().setPort(OFPort.CONTROLLER).setMaxLen(CONTROL_MAX_LEN).build());
+		List<OFInstruction> instr = new ArrayList<>();
+		if (meterId != NO_METER)
+		{
+			instr.add(factory.instructions().buildMeter().setMeterId(meterId).build());
+		}
+		instr.add(factory.instructions().buildApplyActions().setActions(actions).build());
+		OFFlowAdd.Builder flowAdd = factory.buildFlowAdd().setActions(actions).setInstructions(instr).setMatch(match).setIdleTimeout(0).setHardTimeout(0)
+				.setPriority(priority).setFlags(FLOW_FLAGS_DEFAULT);
+		return tag(sw, flowAdd, kind);
+	}
+
+	/**
+	 * meter dropping packets above rate (packets per second) with the given
+	 * burst size
+	 */
+	public static OFMeterMod meterAdd(IOFSwitch sw, long meterId, long rate, long burst) {
+		OFFactory factory = sw.getOFFactory();
+		List<OFMeterBand> bands = Collections.singletonList((OFMeterBand) factory.meterBands().buildDrop().setRate(rate).setBurstSize(burst).build());
+		return factory.buildMeterMod().setMeterId(meterId).setCommand(OFMeterModCommand.ADD)
+				.setFlags(EnumSet.of(OFMeterFlags.PKTPS, OFMeterFlags.BURST, OFMeterFlags.STATS)).setMeters(bands).build();
+	}
+
+	public static OFMeterMod meterDelete(IOFSwitch sw, long meterId) {
+		return sw.getOFFactory().buildMeterMod().setMeterId(meterId).setCommand(OFMeterModCommand.DELETE).build();
+	}
+
+	/* OpenFlow 1.5 replaced the meter instruction by an action */
+	public static boolean supportsMeters(IOFSwitch sw) {
+		OFVersion version = sw.getOFFactory().getVersion();
+		return version == OFVersion.OF_13 || version == OFVersion.OF_14;
+	}
+
 	public static OFFlowAdd flowModIntermediateControllerPath(int sourceController, OFPort inPort, int targetController, IOFSwitch outSwitch,
 			OFPort outPort) {
+		List<OFAction> actions = Collections.singletonList(outSwitch.getOFFactory().actions().buildOutput().setPort(outPort).build());
+		return flowModIntermediateControllerPath(sourceController, inPort, targetController, outSwitch, actions);
+	}
+
+	/**
+	 * intermediate rule which hands the messages to a (fast-failover) group
+	 */
+	public static OFFlowAdd flowModIntermediateControllerPath(int sourceController, OFPort inPort, int targetController, IOFSwitch outSwitch,
+			OFGroup group) {
+		List<OFAction> actions = Collections.singletonList((OFAction) outSwitch.getOFFactory().actions().group(group));
+		return flowModIntermediateControllerPath(sourceController, inPort, targetController, outSwitch, actions);
+	}
+
+	private static OFFlowAdd flowModIntermediateControllerPath(int sourceController, OFPort inPort, int targetController, IOFSwitch outSwitch,
+			List<OFAction> actions) {
 		OFFactory factory = outSwitch.getOFFactory();
 
-		List<OFAction> actions = Collections.singletonList(factory.actions().buildOutput().setPort(outPort).build());
 		List<OFInstruction> instr = Collections.singletonList(factory.instructions().buildApplyActions().setActions(actions).build());
 		Match match = factory.buildMatch().setExact(MatchField.VLAN_VID, OF_VLAN_COMMUNICATION).setExact(MatchField.IN_PORT, inPort)
 				.setExact(MatchField.ETH_TYPE, EthType.IPv4).setExact(MatchField.IP_PROTO, IpProtocol.UDP)
 				.setExact(MatchField.UDP_SRC, TransportPort.of(sourceController)).setExact(MatchField.UDP_DST, TransportPort.of(targetController))
 				.build();
-		OFFlowAdd flowAdd = factory.buildFlowAdd().setActions(actions).setInstructions(instr).setMatch(match).setIdleTimeout(IDLE_TIMEOUT).setHardTimeout(0)
-				.setPriority(FLOW_PRIORITY_HIGH).setFlags(FLOW_FLAGS_DEFAULT).build();
-		return flowAdd;
+		OFFlowAdd.Builder flowAdd = factory.buildFlowAdd().setActions(actions).setInstructions(instr).setMatch(match).setIdleTimeout(IDLE_TIMEOUT)
+				.setHardTimeout(0).setPriority(FLOW_PRIORITY_HIGH).setFlags(FLOW_FLAGS_DEFAULT);
+		return tag(outSwitch, flowAdd, RULE_INTERMEDIATE);
+	}
+
+	/**
+	 * intermediate rule forwarding the messages of all sources to the target
+	 * controller, whatever port they come from
+	 */
+	public static OFFlowAdd flowModAggregatedControllerPath(int targetController, IOFSwitch outSwitch, OFPort outPort) {
+		OFFactory factory = outSwitch.getOFFactory();
+
+		List<OFAction> actions = Collections.singletonList(factory.actions().buildOutput().setPort(outPort).build());
+		List<OFInstruction> instr = Collections.singletonList(factory.instructions().buildApplyActions().setActions(actions).build());
+		Match match = factory.buildMatch().setExact(MatchField.VLAN_VID, OF_VLAN_COMMUNICATION).setExact(MatchField.ETH_TYPE, EthType.IPv4)
+				.setExact(MatchField.IP_PROTO, IpProtocol.UDP).setExact(MatchField.UDP_DST, TransportPort.of(targetController)).build();
+		OFFlowAdd.Builder flowAdd = factory.buildFlowAdd().setActions(actions).setInstructions(instr).setMatch(match).setIdleTimeout(IDLE_TIMEOUT)
+				.setHardTimeout(0).setPriority(FLOW_PRIORITY_AGGREGATED).setFlags(FLOW_FLAGS_DEFAULT);
+		return tag(outSwitch, flowAdd, RULE_INTERMEDIATE);
 	}
 
 	public static OFFlowAdd flowModControllerPath(IOFSwitch sw, OFPort port, int targetController) {
@@ -95,85 +297,141 @@ public class OFMessageBuilder {
 		Match match = factory.buildMatch().setExact(MatchField.VLAN_VID, OF_VLAN_COMMUNICATION).setExact(MatchField.IN_PORT, port)
 				.setExact(MatchField.ETH_TYPE, EthType.IPv4).setExact(MatchField.IP_PROTO, IpProtocol.UDP)
 				.setExact(MatchField.UDP_DST, TransportPort.of(targetController)).build();
-		OFFlowAdd flowAdd = factory.buildFlowAdd().setActions(actions).setInstructions(instr).setMatch(match).setIdleTimeout(IDLE_TIMEOUT).setHardTimeout(0)
-				.setPriority(FLOW_PRIORITY_HIGH).setFlags(FLOW_FLAGS_DEFAULT).build();
-		return flowAdd;
+		OFFlowAdd.Builder flowAdd = factory.buildFlowAdd().setActions(actions).setInstructions(instr).setMatch(match).setIdleTimeout(IDLE_TIMEOUT)
+				.setHardTimeout(0).setPriority(FLOW_PRIORITY_HIGH).setFlags(FLOW_FLAGS_DEFAULT);
+		return tag(sw, flowAdd, RULE_LAST_HOP);
+	}
+
+	/**
+	 * group forwarding to the primary port while it is live and to the backup
+	 * port otherwise, requires OpenFlow 1.3
+	 */
+	public static OFGroupAdd groupAddFastFailover(IOFSwitch sw, OFGroup group, OFPort primaryPort, OFPort backupPort) {
+		OFFactory factory = sw.getOFFactory();
+
+		List<OFBucket> buckets = new ArrayList<>();
+		for (OFPort port : new OFPort[] { primaryPort, backupPort })
+		{
+			List<OFAction> actions = Collections.singletonList(factory.actions().buildOutput().setPort(port).build());
+			buckets.add(factory.buildBucket().setActions(actions).setWatchPort(port).setWatchGroup(OFGroup.ANY).build());
+		}
+		return factory.buildGroupAdd().setGroup(group).setGroupType(OFGroupType.FF).setBuckets(buckets).build();
+	}
+
+	public static OFGroupDelete groupDelete(IOFSwitch sw, OFGroup group) {
+		return sw.getOFFactory().buildGroupDelete().setGroup(group).setGroupType(OFGroupType.FF).build();
+	}
+
+	public static boolean supportsGroups(IOFSwitch sw) {
+		return sw.getOFFactory().getVersion().compareTo(OFVersion.OF_13) >= 0;
 	}
 
 	public static byte[] activatePacket(int sourcecontroller, int targetController, int costs) {
-		Ethernet l2 = new Ethernet();
-		l2.setSourceMACAddress(ACTIVATE_MAC);
-		l2.setDestinationMACAddress(MacAddress.BROADCAST);
-		l2.setVlanID(OF_VLAN_DISCOVERY.getVlan());
-		l2.setEtherType(EthType.IPv4);
-		IPv4 l3 = new IPv4();
-		l3.setSourceAddress(IPv4Address.of("10.0.0.1"));
-		l3.setDestinationAddress(IPv4Address.of("10.0.0.255"));
-		l3.setTtl((byte) 64);
-		l3.setProtocol(IpProtocol.UDP);
-		UDP l4 = new UDP();
-		l4.setSourcePort(TransportPort.of(sourcecontroller));
-		l4.setDestinationPort(TransportPort.of(targetController));
-		Data l7 = new Data();
-		l7.setData(("signature=DUMMY,costs=" + costs).getBytes());
-
-		l2.setPayload(l3);
-		l3.setPayload(l4);
-		l4.setPayload(l7);
-
-		byte[] serializedData = l2.serialize();
-		return serializedData;
+		byte[] payload;
+		if (textControlFormat)
+		{
+			payload = ("signature=DUMMY,costs=" + costs).getBytes();
+		}
+		else
+		{
+			payload = ControlHeader.encode(ControlHeader.TYPE_ACTIVATION, 0, costs, 0, sourcecontroller, targetController);
+		}
+		byte[] template = PacketTemplates.get(PacketTemplates.KIND_ACTIVATION, sourcecontroller, targetController, TEMPLATE_FACTORY);
+		return PacketTemplates.fill(template, payload, 0, payload.length);
 	}
 
 	public static byte[] discoveryPacket(int costs, int controllerId, int targetController, int switchId) {
-		// https://floodlight.atlassian.net/wiki/display/floodlightcontroller/How+to+Create+a+Packet+Out+Message
-		Ethernet l2 = new Ethernet();
-		l2.setSourceMACAddress(DISCOVERY_MAC);
-		l2.setDestinationMACAddress(MacAddress.BROADCAST);
-		l2.setVlanID(OF_VLAN_DISCOVERY.getVlan());
-		l2.setEtherType(EthType.IPv4);
-		IPv4 l3 = new IPv4();
-		l3.setSourceAddress(IPv4Address.of(switchId));
-		l3.setDestinationAddress(IPv4Address.of("10.0.0.255"));
-		l3.setTtl((byte) 64);
-		l3.setProtocol(IpProtocol.UDP);
-		UDP l4 = new UDP();
-		l4.setSourcePort(TransportPort.of(controllerId));
-		l4.setDestinationPort(TransportPort.of(targetController));
-		Data l7 = new Data();
-		l7.setData(("costs=" + costs + ",signature=DUMMY").getBytes());
-
-		l2.setPayload(l3);
-		l3.setPayload(l4);
-		l4.setPayload(l7);
-
-		byte[] serializedData = l2.serialize();
-		return serializedData;
+		return discoveryPacket(costs, controllerId, targetController, switchId, 0);
+	}
+
+	/**
+	 * @param sequence
+	 *            of the announcement of controllerId, 0 if unknown
+	 */
+	public static byte[] discoveryPacket(int costs, int controllerId, int targetController, int switchId, int sequence) {
+		byte[] payload;
+		if (textControlFormat)
+		{
+			payload = ("costs=" + costs + ",signature=DUMMY" + (sequence != 0 ? ",sequence=" + sequence : "")).getBytes();
+		}
+		else
+		{
+			payload = ControlHeader.encode(ControlHeader.TYPE_DISCOVERY, 0, costs, sequence, controllerId, targetController);
+		}
+		byte[] template = PacketTemplates.get(PacketTemplates.KIND_DISCOVERY, controllerId, targetController, TEMPLATE_FACTORY);
+		byte[] packet = PacketTemplates.fill(template, payload, 0, payload.length);
+		PacketTemplates.setIPv4Source(packet, switchId);
+		return packet;
 	}
 
 	public static byte[] controllerMessage(int controllerId, int targetControllerId, String message) {
-		Ethernet l2 = new Ethernet();
-		l2.setSourceMACAddress(MacAddress.of("0" + controllerId + ":00:00:00:01:f2"));
-		l2.setDestinationMACAddress(MacAddress.of("0" + targetControllerId + ":00:00:00:01:f2"));
-		l2.setVlanID(OF_VLAN_COMMUNICATION.getVlan());
-		l2.setEtherType(EthType.IPv4);
-		IPv4 l3 = new IPv4();
-		l3.setSourceAddress(IPv4Address.of("10.0.0." + controllerId));
-		l3.setDestinationAddress(IPv4Address.of("10.0.0." + targetControllerId));
-		l3.setTtl((byte) 64);
-		l3.setProtocol(IpProtocol.UDP);
-		UDP l4 = new UDP();
-		l4.setSourcePort(TransportPort.of(controllerId));
-		l4.setDestinationPort(TransportPort.of(targetControllerId));
-		Data l7 = new Data();
-		l7.setData(message.getBytes());
-
-		l2.setPayload(l3);
-		l3.setPayload(l4);
-		l4.setPayload(l7);
-
-		byte[] serializedData = l2.serialize();
-		return serializedData;
+		byte[] payload = message.getBytes();
+		return controllerMessage(controllerId, targetControllerId, payload, 0, payload.length);
+	}
+
+	public static byte[] controllerMessage(int controllerId, int targetControllerId, byte[] payload, int offset, int length) {
+		byte[] template = PacketTemplates.get(PacketTemplates.KIND_MESSAGE, controllerId, targetControllerId, TEMPLATE_FACTORY);
+		return PacketTemplates.fill(template, payload, offset, length);
+	}
+
+	/*
+	 * serializes the headers of a packet kind once, the payload is added by
+	 * PacketTemplates.fill
+	 */
+	private static final PacketTemplates.Factory TEMPLATE_FACTORY = new PacketTemplates.Factory() {
+		@Override
+		public byte[] create(int kind, int source, int target) {
+			// https://floodlight.atlassian.net/wiki/display/floodlightcontroller/How+to+Create+a+Packet+Out+Message
+			Ethernet l2 = new Ethernet();
+			IPv4 l3 = new IPv4();
+			switch (kind) {
+			case PacketTemplates.KIND_DISCOVERY:
+				l2.setSourceMACAddress(DISCOVERY_MAC);
+				l2.setDestinationMACAddress(MacAddress.BROADCAST);
+				l2.setVlanID(OF_VLAN_DISCOVERY.getVlan());
+				l3.setSourceAddress(IPv4Address.of(0));
+				l3.setDestinationAddress(IPv4Address.of("10.0.0.255"));
+				break;
+			case PacketTemplates.KIND_ACTIVATION:
+				l2.setSourceMACAddress(ACTIVATE_MAC);
+				l2.setDestinationMACAddress(MacAddress.BROADCAST);
+				l2.setVlanID(OF_VLAN_DISCOVERY.getVlan());
+				l3.setSourceAddress(IPv4Address.of("10.0.0.1"));
+				l3.setDestinationAddress(IPv4Address.of("10.0.0.255"));
+				break;
+			default:
+				l2.setSourceMACAddress(controllerMac(source));
+				l2.setDestinationMACAddress(controllerMac(target));
+				l2.setVlanID(OF_VLAN_COMMUNICATION.getVlan());
+				l3.setSourceAddress(controllerAddress(source));
+				l3.setDestinationAddress(controllerAddress(target));
+				break;
+			}
+			l2.setEtherType(EthType.IPv4);
+			l3.setTtl((byte) 64);
+			l3.setProtocol(IpProtocol.UDP);
+			UDP l4 = new UDP();
+			l4.setSourcePort(TransportPort.of(source));
+			l4.setDestinationPort(TransportPort.of(target));
+			Data l7 = new Data();
+			l7.setData(new byte[0]);
+
+			l2.setPayload(l3);
+			l3.setPayload(l4);
+			l4.setPayload(l7);
+
+			return l2.serialize();
+		}
+	};
+
+	/* 0x:00:00:00:01:f2 with the controller id as first byte */
+	public static MacAddress controllerMac(int controllerId) {
+		return MacAddress.of((controllerId & 0xffL) << 40 | 0x01f2L);
+	}
+
+	/* 10.0.0.x with the controller id as last byte */
+	public static IPv4Address controllerAddress(int controllerId) {
+		return IPv4Address.of(10 << 24 | (controllerId & 0xff));
 	}
 
 	public static OFPacketOut packetOut(IOFSwitch switch_, OFPort port, byte[] serializedData) {
@@ -0,0 +1,100 @@
+/**
+    Licensed to the Apache Software Foundation (ASF) under one
+    or more contributor license agreements.  See the NOTICE file
+    distributed with this work for additional information
+    regarding copyright ownership.  The ASF licenses this file
+    to you under the Apache License, Version 2.0 (the
+    "License"); you may not use this file except in compliance
+    with the License.  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on an
+    "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied.  See the License for the
+    specific language governing permissions and limitations
+    under the License.
+    
+    
+    @author Rhaban Hark
+**/
+
+package de.tud.kom.inband.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Serialized Ethernet/VLAN/IPv4/UDP headers of in-band packets, keyed by
+ * (kind, source, target). A packet is built by copying the header and the
+ * payload into one array and patching lengths and the IPv4 checksum, so no
+ * packet object tree is created per message.
+ * 
+ * Templates are shared and must never be modified. The UDP checksum is left
+ * at zero, which IPv4 allows.
+ */
+class PacketTemplates {
+
+	public static final int KIND_DISCOVERY = 0;
+	public static final int KIND_ACTIVATION = 1;
+	public static final int KIND_MESSAGE = 2;
+
+	/* all in-band packets carry a VLAN tag and no IP options */
+	static final int IPV4_OFFSET = 18;
+	static final int UDP_OFFSET = IPV4_OFFSET + 20;
+	static final int HEADER_LENGTH = UDP_OFFSET + 8;
+
+	private static final ConcurrentMap<Long, byte[]> templates = new ConcurrentHashMap<>();
+
+	interface Factory {
+		byte[] create(int kind, int source, int target);
+	}
+
+	static byte[] get(int kind, int source, int target, Factory factory) {
+		long key = (long) kind << 32 | (source & 0xffffL) << 16 | (target & 0xffffL);
+		byte[] template = templates.get(key);
+		if (template == null)
+		{
+			template = factory.create(kind, source, target);
+			if (template.length != HEADER_LENGTH)
+			{
+				throw new IllegalStateException("Unexpected template length " + template.length);
+			}
+			templates.putIfAbsent(key, template);
+		}
+		return template;
+	}
+
+	/**
+	 * copy template and payload into a new packet and fix lengths and
+	 * checksum
+	 */
+	static byte[] fill(byte[] template, byte[] payload, int offset, int length) {
+		byte[] packet = new byte[HEADER_LENGTH + length];
+		System.arraycopy(template, 0, packet, 0, HEADER_LENGTH);
+		System.arraycopy(payload, offset, packet, HEADER_LENGTH, length);
+		ControlHeader.putShort(packet, IPV4_OFFSET + 2, 20 + 8 + length);
+		ControlHeader.putShort(packet, UDP_OFFSET + 4, 8 + length);
+		ControlHeader.putShort(packet, UDP_OFFSET + 6, 0);
+		updateIPv4Checksum(packet);
+		return packet;
+	}
+
+	static void setIPv4Source(byte[] packet, int address) {
+		ControlHeader.putInt(packet, IPV4_OFFSET + 12, address);
+		updateIPv4Checksum(packet);
+	}
+
+	private static void updateIPv4Checksum(byte[] packet) {
+		ControlHeader.putShort(packet, IPV4_OFFSET + 10, 0);
+		int sum = 0;
+		for (int i = IPV4_OFFSET; i < UDP_OFFSET; i += 2)
+		{
+			sum += ControlHeader.getShort(packet, i);
+		}
+		sum = (sum >> 16) + (sum & 0xffff);
+		sum += sum >> 16;
+		ControlHeader.putShort(packet, IPV4_OFFSET + 10, ~sum & 0xffff);
+	}
+}
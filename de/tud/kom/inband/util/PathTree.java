@@ -0,0 +1,109 @@
+/**
+    Licensed to the Apache Software Foundation (ASF) under one
+    or more contributor license agreements.  See the NOTICE file
+    distributed with this work for additional information
+    regarding copyright ownership.  The ASF licenses this file
+    to you under the Apache License, Version 2.0 (the
+    "License"); you may not use this file except in compliance
+    with the License.  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on an
+    "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied.  See the License for the
+    specific language governing permissions and limitations
+    under the License.
+    
+    
+    @author Rhaban Hark
+**/
+
+package de.tud.kom.inband.util;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Shortest-path tree rooted at one switch of the own network. All intra
+ * network links have the same weight, so a breadth-first search yields the
+ * same tree as Dijkstra.
+ */
+class PathTree {
+
+	private long source;
+	/* link used to reach a switch, i.e. the out port at its predecessor */
+	private Map<Long, Port> parentLink;
+	private Map<Long, Long> predecessor;
+
+	PathTree(long source, Map<Long, Set<Port>> links) {
+		this.source = source;
+		this.parentLink = new HashMap<>();
+		this.predecessor = new HashMap<>();
+		this.predecessor.put(source, source);
+
+		Queue<Long> queue = new ArrayDeque<>();
+		queue.add(source);
+		while (!queue.isEmpty())
+		{
+			long current = queue.poll();
+			Set<Port> neighbours = links.get(current);
+			if (neighbours == null)
+			{
+				continue;
+			}
+			for (Port p : neighbours)
+			{
+				long next = p.getSwitch_().getId().getLong();
+				if (this.predecessor.containsKey(next))
+				{
+					continue;
+				}
+				this.predecessor.put(next, current);
+				this.parentLink.put(next, p);
+				queue.add(next);
+			}
+		}
+	}
+
+	public long getSource() {
+		return source;
+	}
+
+	public boolean reaches(long dpid) {
+		return this.predecessor.containsKey(dpid);
+	}
+
+	/**
+	 * @param destination
+	 *            dpid of the destination switch
+	 * @return the hops from the source to the destination, an empty list if
+	 *         both are the same switch or null if the destination can not be
+	 *         reached
+	 */
+	public List<Port> getPath(long destination) {
+		if (destination == this.source)
+		{
+			return Collections.emptyList();
+		}
+		if (!reaches(destination))
+		{
+			return null;
+		}
+		LinkedList<Port> path = new LinkedList<>();
+		long current = destination;
+		while (current != this.source)
+		{
+			path.addFirst(this.parentLink.get(current));
+			current = this.predecessor.get(current);
+		}
+		return path;
+	}
+}
@@ -53,6 +53,19 @@ public class Port {
 		switch_ = s;
 		port = p;
 	}
-	
-	
+
+	@Override
+	public int hashCode() {
+		return 31 * Long.hashCode(switch_.getId().getLong()) + port.getPortNumber();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof Port))
+			return false;
+		Port other = (Port) obj;
+		return switch_.getId().compareTo(other.switch_.getId()) == 0 && port.compareTo(other.port) == 0;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,56 @@
+/**
+    Licensed to the Apache Software Foundation (ASF) under one
+    or more contributor license agreements.  See the NOTICE file
+    distributed with this work for additional information
+    regarding copyright ownership.  The ASF licenses this file
+    to you under the Apache License, Version 2.0 (the
+    "License"); you may not use this file except in compliance
+    with the License.  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on an
+    "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied.  See the License for the
+    specific language governing permissions and limitations
+    under the License.
+    
+    
+    @author Rhaban Hark
+**/
+
+
+package de.tud.kom.inband.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.OFPort;
+
+/**
+ * Extra costs of congested egress ports, measured from port statistics.
+ * Ports which are not congested have no entry.
+ */
+public class PortLoad {
+
+	private static final ConcurrentMap<SwitchPort, Integer> penalties = new ConcurrentHashMap<>();
+
+	public static int getPenalty(SwitchPort port) {
+		Integer penalty = penalties.get(port);
+		return penalty != null ? penalty : 0;
+	}
+
+	public static int getPenalty(long dpid, OFPort port) {
+		return penalties.isEmpty() ? 0 : getPenalty(new SwitchPort(DatapathId.of(dpid), port));
+	}
+
+	/**
+	 * @return true if the penalty of the port changed
+	 */
+	public static boolean setPenalty(SwitchPort port, int penalty) {
+		Integer previous = penalty > 0 ? penalties.put(port, penalty) : penalties.remove(port);
+		return (previous != null ? previous : 0) != penalty;
+	}
+}
@@ -22,41 +22,78 @@
 
 package de.tud.kom.inband.util;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.projectfloodlight.openflow.protocol.OFFlowAdd;
+import org.projectfloodlight.openflow.types.OFGroup;
 import org.projectfloodlight.openflow.types.OFPort;
 
-import de.tud.kom.inband.eval.EvalCollector;
 import net.floodlightcontroller.core.IOFSwitch;
 
-// FIXME: so far limited to one-hop
 public class Routing {
 
-	private static Map<Long, Set<Port>> intraNetworkLinks = new HashMap<>();
+	/*
+	 * immutable link graph together with the shortest-path trees computed on
+	 * it. Readers take the current snapshot without locking, writers are
+	 * serialized and publish a new snapshot.
+	 */
+	private static final class Topology {
+		final Map<Long, Set<Port>> intraNetworkLinks;
+		/*
+		 * shortest-path trees per source switch, computed on demand and
+		 * carried over to the next snapshot if the change does not affect them
+		 */
+		final ConcurrentMap<Long, PathTree> pathTrees;
 
-	public static List<Port> getPathOld(IOFSwitch srcSw, IOFSwitch dstSw) {
-		if(!intraNetworkLinks.containsKey(srcSw.getId().getLong()))
-			return null;
-		for (Port p : intraNetworkLinks.get(srcSw.getId().getLong()))
-		{
-			if (p.switch_.getId().compareTo(dstSw.getId()) == 0)
+		Topology(Map<Long, Set<Port>> intraNetworkLinks) {
+			this.intraNetworkLinks = intraNetworkLinks;
+			this.pathTrees = new ConcurrentHashMap<>();
+		}
+
+		PathTree getPathTree(long source) {
+			PathTree tree = this.pathTrees.get(source);
+			if (tree == null)
 			{
-				return Collections.singletonList(p);
+				tree = new PathTree(source, this.intraNetworkLinks);
+				PathTree other = this.pathTrees.putIfAbsent(source, tree);
+				if (other != null)
+					tree = other;
 			}
+			return tree;
+		}
+
+		/*
+		 * find the port of fromSwitch which is directly linked to toSwitch
+		 */
+		Port getLink(IOFSwitch fromSwitch, IOFSwitch toSwitch) {
+			Set<Port> links = this.intraNetworkLinks.get(fromSwitch.getId().getLong());
+			if (links == null)
+				return null;
+			for (Port p : links)
+			{
+				if (p.switch_.getId().compareTo(toSwitch.getId()) == 0)
+				{
+					return p;
+				}
+			}
+			return null;
 		}
-		return null;
 	}
-	
-	public static List<Port> getPath(IOFSwitch srcSw, IOFSwitch dstSw) {
+
+	private static volatile Topology topology = new Topology(Collections.<Long, Set<Port>>emptyMap());
+
+	public static List<Port> getPathOld(IOFSwitch srcSw, IOFSwitch dstSw) {
+		Map<Long, Set<Port>> intraNetworkLinks = topology.intraNetworkLinks;
 		if(!intraNetworkLinks.containsKey(srcSw.getId().getLong()))
 			return null;
-		
 		for (Port p : intraNetworkLinks.get(srcSw.getId().getLong()))
 		{
 			if (p.switch_.getId().compareTo(dstSw.getId()) == 0)
@@ -66,67 +103,302 @@ public class Routing {
 		}
 		return null;
 	}
+	
+	/**
+	 * @return the hops (out port and next switch) from srcSw to dstSw, an
+	 *         empty list if both are the same switch or null if no path exists
+	 */
+	public static List<Port> getPath(IOFSwitch srcSw, IOFSwitch dstSw) {
+		return topology.getPathTree(srcSw.getId().getLong()).getPath(dstSw.getId().getLong());
+	}
 
 	public static int getPathCost(IOFSwitch srcSw, IOFSwitch destSw) {
 		if (srcSw.getId().compareTo(destSw.getId()) == 0)
 			return 1;
 
 		List<Port> path = getPath(srcSw, destSw);
-		return path != null ? path.size() : -1;
+		if (path == null)
+			return -1;
+		// every hop plus the penalties of congested links along the path
+		int costs = path.size();
+		long current = srcSw.getId().getLong();
+		for (Port hop : path)
+		{
+			costs += PortLoad.getPenalty(current, hop.port);
+			current = hop.switch_.getId().getLong();
+		}
+		return costs;
+	}
+
+	/**
+	 * @return immutable snapshot of the links between the switches of this
+	 *         controller, by source switch
+	 */
+	public static Map<Long, Set<Port>> getIntraNetworkLinks() {
+		return topology.intraNetworkLinks;
 	}
 
 	public static synchronized void addIntraNetworkLink(IOFSwitch fromSwitch, OFPort fromPort, IOFSwitch toSwitch) {
+		if (toSwitch == null)
+		{
+			return;
+		}
+		Topology current = topology;
+		long from = fromSwitch.getId().getLong();
+		Port link = new Port(toSwitch, fromPort);
+		Set<Port> set = current.intraNetworkLinks.get(from);
+		if (set != null && set.contains(link))
+		{
+			return;
+		}
+		Set<Port> newSet = set == null ? new HashSet<Port>() : new HashSet<Port>(set);
+		newSet.add(link);
+		Map<Long, Set<Port>> links = new HashMap<>(current.intraNetworkLinks);
+		links.put(from, Collections.unmodifiableSet(newSet));
+		publish(current, links, from);
+	}
+
+	private static void publish(Topology current, Map<Long, Set<Port>> links, long changedSwitch) {
+		Topology next = new Topology(Collections.unmodifiableMap(links));
+		/*
+		 * a link added at or removed from the given switch can only change
+		 * paths of sources which reach this switch
+		 */
+		for (PathTree tree : current.pathTrees.values())
+		{
+			if (!tree.reaches(changedSwitch))
+			{
+				next.pathTrees.put(tree.getSource(), tree);
+			}
+		}
+		topology = next;
+	}
+
+	/**
+	 * remove the links leaving the switch at the given port, e.g. because the
+	 * port went down
+	 */
+	public static synchronized void removeIntraNetworkLinks(IOFSwitch fromSwitch, OFPort fromPort) {
+		Topology current = topology;
 		long from = fromSwitch.getId().getLong();
-		OFPort port = fromPort;
-		if (!intraNetworkLinks.containsKey(from))
+		Set<Port> set = current.intraNetworkLinks.get(from);
+		if (set == null)
 		{
-			intraNetworkLinks.put(from, new HashSet<>());
+			return;
+		}
+		Set<Port> newSet = new HashSet<Port>();
+		for (Port p : set)
+		{
+			if (p.port.compareTo(fromPort) != 0)
+			{
+				newSet.add(p);
+			}
 		}
-		Set<Port> set = intraNetworkLinks.get(from);
-		if(set == null)
+		if (newSet.size() == set.size())
 		{
-			System.err.println("Set was null for " + from + ":" + intraNetworkLinks.get(from));
+			return;
+		}
+		Map<Long, Set<Port>> links = new HashMap<>(current.intraNetworkLinks);
+		links.put(from, Collections.unmodifiableSet(newSet));
+		publish(current, links, from);
+	}
+
+	/* resolved hop of an in-band path: rule at sw from inPort to outPort */
+	private static final class Hop {
+		final IOFSwitch sw;
+		final OFPort inPort;
+		final OFPort outPort;
+
+		Hop(IOFSwitch sw, OFPort inPort, OFPort outPort) {
+			this.sw = sw;
+			this.inPort = inPort;
+			this.outPort = outPort;
+		}
+
+		boolean sameRule(Hop other) {
+			return sw.getId().compareTo(other.sw.getId()) == 0 && inPort.compareTo(other.inPort) == 0 && outPort.compareTo(other.outPort) == 0;
+		}
+	}
+
+	/*
+	 * resolve the ingress port of every hop before writing anything, so a
+	 * missing reverse link does not leave a partial path behind
+	 */
+	private static List<Hop> resolveHops(Topology snapshot, IOFSwitch inSwitch, OFPort inPort, IOFSwitch outSwitch, OFPort outPort) {
+		List<Port> path = snapshot.getPathTree(inSwitch.getId().getLong()).getPath(outSwitch.getId().getLong());
+		if (path == null)
+			return null;
+
+		List<Hop> hops = new ArrayList<>();
+		IOFSwitch current = inSwitch;
+		OFPort currentInPort = inPort;
+		for (Port hop : path)
+		{
+			Port reverse = snapshot.getLink(hop.switch_, current);
+			if (reverse == null)
+				return null;
+			hops.add(new Hop(current, currentInPort, hop.port));
+			current = hop.switch_;
+			currentInPort = reverse.port;
+		}
+		hops.add(new Hop(outSwitch, currentInPort, outPort));
+		return hops;
+	}
+
+	/*
+	 * resolve the hops along the shortest-path tree of the egress switch, so
+	 * every switch has the same next hop for all paths to this egress
+	 */
+	private static List<Hop> resolveHopsToward(Topology snapshot, IOFSwitch inSwitch, OFPort inPort, IOFSwitch outSwitch, OFPort outPort) {
+		List<Port> reversePath = snapshot.getPathTree(outSwitch.getId().getLong()).getPath(inSwitch.getId().getLong());
+		if (reversePath == null)
+			return null;
+
+		List<IOFSwitch> switches = new ArrayList<>();
+		switches.add(outSwitch);
+		for (Port hop : reversePath)
+		{
+			switches.add(hop.switch_);
+		}
+		Collections.reverse(switches);
+
+		List<Hop> hops = new ArrayList<>();
+		OFPort currentInPort = inPort;
+		for (int i = 0; i < switches.size() - 1; i++)
+		{
+			Port forward = snapshot.getLink(switches.get(i), switches.get(i + 1));
+			Port reverse = snapshot.getLink(switches.get(i + 1), switches.get(i));
+			if (forward == null || reverse == null)
+				return null;
+			hops.add(new Hop(switches.get(i), currentInPort, forward.port));
+			currentInPort = reverse.port;
+		}
+		hops.add(new Hop(outSwitch, currentInPort, outPort));
+		return hops;
+	}
+
+	private static volatile boolean aggregatedRules;
+
+	/**
+	 * install one rule per target controller on each switch (matching the
+	 * target only) instead of one per source, target and in port; only one
+	 * path per target can exist then, so neither multipath nor fast failover
+	 * work with it
+	 */
+	public static void setAggregatedRules(boolean enabled) {
+		aggregatedRules = enabled;
+	}
+
+	private static FailoverGroups failoverGroups;
+
+	/**
+	 * enable installing backup paths as fast-failover groups
+	 */
+	public static void setFastFailover(boolean enabled) {
+		failoverGroups = enabled ? new FailoverGroups() : null;
+	}
+
+	/**
+	 * @return whether paths get a backup branch to a second connection
+	 */
+	public static boolean installsBackupPaths() {
+		return failoverGroups != null && !aggregatedRules;
+	}
+
+	/**
+	 * release the fast-failover groups protecting a withdrawn connection
+	 */
+	public static void connectionWithdrawn(SwitchPort connection) {
+		FailoverGroups groups = failoverGroups;
+		if (groups != null)
+		{
+			groups.releaseConnection(connection);
 		}
-		set.add(new Port(toSwitch, port));
 	}
 
 	public static Port installRulesBetween(int sourceController, IOFSwitch inSwitch, OFPort inPort, int targetController, IOFSwitch outSwitch, OFPort outPort) {
-		if (inSwitch.getId().compareTo(outSwitch.getId()) == 0)
+		return installRulesBetween(sourceController, inSwitch, inPort, targetController, outSwitch, outPort, null, null, null);
+	}
+
+	/**
+	 * Install the path from inSwitch:inPort to the connection at
+	 * outSwitch:outPort. If fast failover is enabled and a backup connection
+	 * is given, the path to the backup is installed as well and the switch
+	 * where both paths part hands the messages to a fast-failover group, so
+	 * it falls back to the backup path on its own once the primary port goes
+	 * down.
+	 * 
+	 * With aggregated rules the path follows the shortest-path tree of the
+	 * egress switch and merges with the paths of other sources to the same
+	 * target controller.
+	 * 
+	 * The rules are written per switch in one go, onInstalled runs once all
+	 * switches have confirmed them with a barrier reply.
+	 */
+	public static Port installRulesBetween(int sourceController, IOFSwitch inSwitch, OFPort inPort, int targetController, IOFSwitch outSwitch, OFPort outPort,
+			IOFSwitch backupSwitch, OFPort backupPort, Runnable onInstalled) {
+		Topology snapshot = topology;
+		boolean aggregated = aggregatedRules;
+		List<Hop> primary = aggregated ? resolveHopsToward(snapshot, inSwitch, inPort, outSwitch, outPort)
+				: resolveHops(snapshot, inSwitch, inPort, outSwitch, outPort);
+		if (primary == null)
+			return null;
+
+		FailoverGroups groups = failoverGroups;
+		List<Hop> backup = null;
+		// a backup branch would need other rules for the same target on its switches
+		if (groups != null && backupSwitch != null && !aggregated)
 		{
-			OFFlowAdd ofFlowMod = OFMessageBuilder.flowModIntermediateControllerPath(sourceController, inPort, targetController, outSwitch, outPort);
-			outSwitch.write(ofFlowMod);
-			EvalCollector.get().incrementRules();
-		} else
+			backup = resolveHops(snapshot, inSwitch, inPort, backupSwitch, backupPort);
+		}
+
+		// hops shared by both paths
+		int fork = 0;
+		if (backup != null)
 		{
+			while (fork < primary.size() && fork < backup.size() && primary.get(fork).sameRule(backup.get(fork)))
+				fork++;
+			if (fork == primary.size() || fork == backup.size() || !OFMessageBuilder.supportsGroups(primary.get(fork).sw))
+				backup = null;
+		}
 
-			Port p_forward = null, p_reverse = null;
-			// forward
-			for (Port p : intraNetworkLinks.get(inSwitch.getId().getLong()))
+		List<IOFSwitch> switches = new ArrayList<>();
+		List<OFFlowAdd> flowMods = new ArrayList<>();
+		List<OFPort> outPorts = new ArrayList<>();
+		for (int i = 0; i < primary.size(); i++)
+		{
+			Hop hop = primary.get(i);
+			if (backup != null && i == fork)
 			{
-				if (p.switch_.getId().compareTo(outSwitch.getId()) == 0)
-				{
-					p_forward = p;
-				}
+				Hop alternative = backup.get(fork);
+				OFGroup group = groups.acquire(hop.sw, hop.outPort, alternative.outPort, new SwitchPort(outSwitch, outPort),
+						new SwitchPort(backupSwitch, backupPort), sourceController, hop.inPort, targetController);
+				switches.add(hop.sw);
+				flowMods.add(OFMessageBuilder.flowModIntermediateControllerPath(sourceController, hop.inPort, targetController, hop.sw, group));
+				outPorts.add(hop.outPort);
+				continue;
 			}
-			// reverse (to find port)
-			for (Port q : intraNetworkLinks.get(outSwitch.getId().getLong()))
+			switches.add(hop.sw);
+			flowMods.add(aggregated ? OFMessageBuilder.flowModAggregatedControllerPath(targetController, hop.sw, hop.outPort)
+					: OFMessageBuilder.flowModIntermediateControllerPath(sourceController, hop.inPort, targetController, hop.sw, hop.outPort));
+			outPorts.add(hop.outPort);
+		}
+		if (backup != null)
+		{
+			for (Hop hop : backup.subList(fork + 1, backup.size()))
 			{
-				if (q.switch_.getId().compareTo(inSwitch.getId()) == 0)
-				{
-					p_reverse = q;
-				}
+				switches.add(hop.sw);
+				flowMods.add(OFMessageBuilder.flowModIntermediateControllerPath(sourceController, hop.inPort, targetController, hop.sw, hop.outPort));
+				outPorts.add(hop.outPort);
 			}
+		}
 
-			if (p_forward == null || p_reverse == null)
-				return null;
-
-			OFFlowAdd ofFlowModInner = OFMessageBuilder.flowModIntermediateControllerPath(sourceController, inPort, targetController, inSwitch, p_forward.port);
-			OFFlowAdd ofFlowModOut = OFMessageBuilder.flowModIntermediateControllerPath(sourceController, p_reverse.port, targetController, outSwitch, outPort);
-			inSwitch.write(ofFlowModInner);
-			outSwitch.write(ofFlowModOut);
-			EvalCollector.get().incrementRules();
-			EvalCollector.get().incrementRules();
+		RuleBatch batch = new RuleBatch();
+		for (int i = 0; i < flowMods.size(); i++)
+		{
+			batch.add(switches.get(i), flowMods.get(i), outPorts.get(i));
 		}
+		batch.commit(onInstalled);
 		return new Port(outSwitch, outPort);
 	}
 
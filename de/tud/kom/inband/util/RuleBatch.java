@@ -0,0 +1,149 @@
+/**
+    Licensed to the Apache Software Foundation (ASF) under one
+    or more contributor license agreements.  See the NOTICE file
+    distributed with this work for additional information
+    regarding copyright ownership.  The ASF licenses this file
+    to you under the Apache License, Version 2.0 (the
+    "License"); you may not use this file except in compliance
+    with the License.  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on an
+    "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied.  See the License for the
+    specific language governing permissions and limitations
+    under the License.
+    
+    
+    @author Rhaban Hark
+**/
+
+
+package de.tud.kom.inband.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.projectfloodlight.openflow.protocol.OFBarrierReply;
+import org.projectfloodlight.openflow.protocol.OFFlowAdd;
+import org.projectfloodlight.openflow.protocol.OFMessage;
+import org.projectfloodlight.openflow.types.OFPort;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * Collects the flow mods of one path installation per switch. On commit every
+ * switch gets its flow mods in one write followed by a barrier; the callback
+ * runs once all switches have answered their barrier, i.e. once the whole
+ * path is in place.
+ * 
+ * The rules count as installed in the {@link FlowRuleRegistry} only after
+ * the barrier reply. If the write or the barrier fails they are forgotten,
+ * so the next activation writes them again instead of forwarding into
+ * missing rules.
+ */
+public class RuleBatch {
+
+	/* barrier callbacks only forward a packet, run them on the I/O thread */
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private static final class SwitchBatch {
+		final IOFSwitch sw;
+		final List<OFMessage> messages = new ArrayList<>();
+		/* as registered, to confirm or forget them */
+		final List<OFFlowAdd> prepared = new ArrayList<>();
+
+		SwitchBatch(IOFSwitch sw) {
+			this.sw = sw;
+		}
+	}
+
+	private Map<Long, SwitchBatch> batches;
+
+	public RuleBatch() {
+		this.batches = new LinkedHashMap<>();
+	}
+
+	/**
+	 * add the rule, unless it is already installed on the switch
+	 */
+	public void add(IOFSwitch sw, OFFlowAdd flowAdd, OFPort outPort) {
+		OFFlowAdd toWrite = FlowRuleRegistry.get().prepare(sw, flowAdd, outPort, false);
+		if (toWrite == null)
+		{
+			return;
+		}
+		SwitchBatch batch = this.batches.get(sw.getId().getLong());
+		if (batch == null)
+		{
+			batch = new SwitchBatch(sw);
+			this.batches.put(sw.getId().getLong(), batch);
+		}
+		batch.messages.add(toWrite);
+		batch.prepared.add(flowAdd);
+	}
+
+	/**
+	 * write all rules
+	 * 
+	 * @param onInstalled
+	 *            run once every switch confirmed its rules, not at all if a
+	 *            switch failed; may be null
+	 */
+	public void commit(final Runnable onInstalled) {
+		if (this.batches.isEmpty())
+		{
+			if (onInstalled != null)
+				onInstalled.run();
+			return;
+		}
+		final AtomicInteger pending = new AtomicInteger(this.batches.size());
+		final FlowRuleRegistry registry = FlowRuleRegistry.get();
+		for (final SwitchBatch batch : this.batches.values())
+		{
+			// unwritten messages are returned
+			if (!batch.sw.write(batch.messages).isEmpty())
+			{
+				System.err.println("Cannot write rules to " + batch.sw.getId().getLong() + ", path not installed");
+				registry.forget(batch.sw, batch.prepared);
+				pending.set(-1);
+				continue;
+			}
+			final ListenableFuture<OFBarrierReply> barrier = batch.sw.writeRequest(batch.sw.getOFFactory().buildBarrierRequest().build());
+			barrier.addListener(new Runnable() {
+				@Override
+				public void run() {
+					try
+					{
+						barrier.get();
+					} catch (InterruptedException | ExecutionException e)
+					{
+						System.err.println("No barrier reply from " + batch.sw.getId().getLong() + ", path not confirmed: " + e);
+						registry.forget(batch.sw, batch.prepared);
+						pending.set(-1);
+						return;
+					}
+					registry.confirm(batch.sw, batch.prepared);
+					if (pending.decrementAndGet() == 0 && onInstalled != null)
+					{
+						onInstalled.run();
+					}
+				}
+			}, DIRECT);
+		}
+	}
+}
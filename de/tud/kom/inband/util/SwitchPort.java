@@ -0,0 +1,73 @@
+/**
+    Licensed to the Apache Software Foundation (ASF) under one
+    or more contributor license agreements.  See the NOTICE file
+    distributed with this work for additional information
+    regarding copyright ownership.  The ASF licenses this file
+    to you under the Apache License, Version 2.0 (the
+    "License"); you may not use this file except in compliance
+    with the License.  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on an
+    "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied.  See the License for the
+    specific language governing permissions and limitations
+    under the License.
+    
+    
+    @author Rhaban Hark
+**/
+
+package de.tud.kom.inband.util;
+
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.OFPort;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * Immutable (DPID, port) pair, usable as hash key for switch ports.
+ */
+public final class SwitchPort {
+	private final long dpid;
+	private final OFPort port;
+
+	public SwitchPort(DatapathId dpid, OFPort port) {
+		this.dpid = dpid.getLong();
+		this.port = port;
+	}
+
+	public SwitchPort(IOFSwitch sw, OFPort port) {
+		this(sw.getId(), port);
+	}
+
+	public long getDpid() {
+		return dpid;
+	}
+
+	public OFPort getPort() {
+		return port;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * Long.hashCode(dpid) + port.getPortNumber();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof SwitchPort))
+			return false;
+		SwitchPort other = (SwitchPort) obj;
+		return dpid == other.dpid && port.getPortNumber() == other.port.getPortNumber();
+	}
+
+	@Override
+	public String toString() {
+		return dpid + ":" + port.getPortNumber();
+	}
+}